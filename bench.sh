@@ -0,0 +1,15 @@
+#!/bin/sh
+# 编译并运行bench包中的JMH基准测试。
+# 依赖与IntelliJ模块（Java-SIFT.iml）相同，放在lib目录下：jblas 1.2.4和OpenCV 4.7.0的jar，
+# 以及jmh-core、jmh-generator-annprocess 1.36及其依赖jopt-simple、commons-math3。
+# OpenCV本地库所在的目录由环境变量OPENCV_NATIVE_DIR给出。其余参数按JMH的格式传给StageBenchmark.main()，例如：
+#   OPENCV_NATIVE_DIR=/path/to/opencv/build/java/x64 sh bench.sh -p image=example/book1.jpg -p parallelism=1,8
+set -e
+cd "$(dirname "$0")"
+: "${OPENCV_NATIVE_DIR:?set OPENCV_NATIVE_DIR to the directory containing the OpenCV native library}"
+OUT=out/bench
+rm -rf "$OUT"
+mkdir -p "$OUT"
+# jmh-generator-annprocess位于类路径上，javac将自动运行其注解处理器，生成基准测试代码及META-INF/BenchmarkList
+javac -encoding UTF-8 -cp "lib/*" -d "$OUT" $(find src -name '*.java')
+java -Djava.library.path="$OPENCV_NATIVE_DIR" -cp "$OUT:lib/*" bench.StageBenchmark "$@"
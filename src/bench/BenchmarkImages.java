@@ -0,0 +1,63 @@
+package bench;
+
+import core.FloatImage;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.util.Random;
+
+import static org.opencv.core.Core.*;
+import static org.opencv.core.CvType.*;
+import static org.opencv.imgcodecs.Imgcodecs.*;
+import static org.opencv.imgproc.Imgproc.*;
+
+/**
+ * 基准测试使用的输入图像。图像可以是文件（如example目录下的图像），也可以是按尺寸生成的合成图像。
+ */
+public class BenchmarkImages {
+    private static final String SYNTHETIC_PREFIX = "synthetic-";
+    private static final long SEED = 20040101L; // 固定随机种子，使合成图像在多次运行之间保持一致
+
+    /**
+     * 加载基准测试图像，并转换为范围在[0,1]内的浮点灰度图像。
+     *
+     * @param name 图像文件路径；或形如"synthetic-640x480"的合成图像名称
+     * @return 范围在[0,1]内的浮点灰度图像
+     * @throws IllegalArgumentException 如果图像文件无法读取，或合成图像名称的格式不正确，将抛出此异常。
+     */
+    public static Mat load(String name) {
+        Mat gray;
+        if (name.startsWith(SYNTHETIC_PREFIX)) {
+            String[] dims = name.substring(SYNTHETIC_PREFIX.length()).split("x");
+            if (dims.length != 2)
+                throw new IllegalArgumentException("Synthetic image name must look like \"synthetic-640x480\", got \"" + name + "\".");
+            gray = synthesize(Integer.parseInt(dims[0]), Integer.parseInt(dims[1]));
+        } else {
+            gray = imread(name, IMREAD_GRAYSCALE);
+            if (gray.empty()) throw new IllegalArgumentException("Failed to read image \"" + name + "\".");
+        }
+        Mat grayFloat = new Mat();
+        normalize(gray, grayFloat, 0, 1, NORM_MINMAX, CV_32F);
+        return grayFloat;
+    }
+
+    /**
+     * 生成具有多尺度纹理的合成图像：将若干张不同分辨率的随机噪声放大到目标尺寸后叠加。
+     *
+     * @param width  图像宽度
+     * @param height 图像高度
+     * @return 浮点类型的合成图像
+     */
+    private static Mat synthesize(int width, int height) {
+        Random random = new Random(SEED);
+        Mat image = Mat.zeros(new Size(width, height), CV_32F);
+        for (int cell = 4; cell <= 64; cell *= 2) {
+            FloatImage noise = new FloatImage(Math.max(width / cell, 2), Math.max(height / cell, 2));
+            for (int i = 0; i < noise.data.length; i++) noise.data[i] = random.nextFloat();
+            Mat layer = new Mat();
+            resize(noise.toMat(), layer, new Size(width, height), 0, 0, INTER_CUBIC);
+            add(image, layer, image);
+        }
+        return image;
+    }
+}
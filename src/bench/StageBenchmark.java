@@ -0,0 +1,130 @@
+package bench;
+
+import core.*;
+import org.jblas.FloatMatrix;
+import org.opencv.core.Core;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * SIFT各阶段的JMH基准测试。每个阶段的输入在Trial开始时准备一次，测试方法只计量该阶段本身的耗时。
+ * 通过image参数选择输入图像，通过parallelism参数设置SiftExecutor的并行度，通过parallel参数切换SiftConfig.parallel，
+ * 以比较串行与并行的关键点处理，并观察各阶段随线程数的扩展情况。
+ * 运行main()时会自动启用GC profiler以报告内存分配速率；需要在项目根目录下运行，以便找到example目录下的图像。
+ * 项目根目录下的bench.sh负责编译（含JMH注解处理）并运行。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class StageBenchmark {
+
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    @Param({"example/book1.jpg", "example/book2.jpg", "synthetic-640x480", "synthetic-1920x1080", "synthetic-4000x3000"})
+    public String image;
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private SiftConfig config;
+    private Mat grayFloat;
+    private ArrayList<Octave> octaves;
+    private CandidateBuffer candidates;
+    private ArrayList<KeyPoint> localizedKeyPoints, orientedKeyPoints;
+    private DescriptorGenerator descriptorGenerator;
+    private final float[] hist = new float[DescriptorGenerator.HIST_LENGTH];
+    private final float[] descriptor = new float[DescriptorGenerator.DESCRIPTOR_LENGTH];
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException, TimeoutException {
+        GlobalParam.verbose = false; // 不计量控制台输出
+        SiftExecutor.setParallelism(parallelism);
+        config = SiftConfig.DEFAULT.toBuilder().parallel(parallel).build();
+        descriptorGenerator = new DescriptorGenerator(config);
+        grayFloat = BenchmarkImages.load(image);
+
+        ExtremaDetector extremaDetector = new ExtremaDetector(config);
+        candidates = extremaDetector.runCandidates(grayFloat);
+        octaves = extremaDetector.octaves;
+        localizedKeyPoints = new KeyPointLocator(config).run(candidates, octaves);
+        orientedKeyPoints = new OrientationComputer(config).run(localizedKeyPoints, octaves);
+    }
+
+    @Benchmark
+    public CandidateBuffer extremaDetection() throws InterruptedException, TimeoutException {
+        return new ExtremaDetector(config).runCandidates(grayFloat);
+    }
+
+    @Benchmark
+    public ArrayList<KeyPoint> keyPointLocalization() throws InterruptedException, TimeoutException {
+        return new KeyPointLocator(config).run(candidates, octaves);
+    }
+
+    @Benchmark
+    public ArrayList<KeyPoint> orientationComputation() throws InterruptedException, TimeoutException {
+        return new OrientationComputer(config).run(localizedKeyPoints, octaves);
+    }
+
+    /**
+     * 在单个线程中为全部关键点生成描述子，复用同一组暂存区，只计量描述子内核本身。
+     */
+    @Benchmark
+    public void descriptorGeneration(Blackhole blackhole) {
+        for (KeyPoint keyPoint : orientedKeyPoints) {
+            descriptorGenerator.generate(keyPoint, octaves, hist, descriptor, 0);
+            blackhole.consume(descriptor[0]);
+        }
+    }
+
+    @Benchmark
+    public ArrayList<FloatMatrix> descriptorStage() throws InterruptedException, TimeoutException {
+        return new DescriptorGenerator(config).run(orientedKeyPoints, octaves);
+    }
+
+    @Benchmark
+    public ArrayList<KeyPointX> endToEnd() {
+        try (SIFT sift = new SIFT(grayFloat, config)) {
+            return sift.run();
+        }
+    }
+
+    @Benchmark
+    public KeyPointSet endToEndPacked() {
+        try (SIFT sift = new SIFT(grayFloat, config)) {
+            return sift.runPacked();
+        }
+    }
+
+    /**
+     * 运行全部基准测试，并启用GC profiler。命令行参数将按JMH的格式解析，例如"-p image=example/book1.jpg -p parallelism=1,8"。
+     */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(StageBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,322 @@
+package core;
+
+import flib.Log;
+import io.IOUtil;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.opencv.core.Core.*;
+import static org.opencv.core.CvType.*;
+import static org.opencv.imgcodecs.Imgcodecs.*;
+import static org.opencv.imgproc.Imgproc.*;
+
+/**
+ * 非交互式的批量特征提取。输入为一个图像目录或一个每行一条图像路径的列表文件，处理分为三个相互重叠的阶段：
+ * 1. 若干个解码线程读取并预处理图像；
+ * 2. 若干个工作线程运行SIFT；
+ * 3. 一个写入线程将关键点和描述子（以及可选的可视化图像）写入输出目录。
+ * 相邻阶段之间通过有界队列连接，当下游处理较慢时上游会被阻塞，因此内存中同时存在的图像数量是有限的。
+ * 单张图像在任一阶段失败（包括抛出运行时异常）时只记录错误并计入失败数，不影响其余图像。
+ * <p>
+ * 输出文件以图像文件名去掉扩展名命名。不同目录下的同名图像（如列表文件中的a/x.jpg与b/x.jpg）将依次追加"_1"、"_2"等后缀，以免相互覆盖。
+ * <p>
+ * 用法：BatchExtractor &lt;图像目录或列表文件&gt; &lt;输出目录&gt; [--decoders N] [--workers N] [--queue N] [--format bin|dat] [--quantize] [--visualize] [--low-memory] [--tile N] [--max-features N] [--grid N]
+ */
+public class BatchExtractor {
+
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private static final String[] IMAGE_POSTFIXES = {".jpg", ".jpeg", ".png", ".bmp", ".tif", ".tiff"};
+
+    private final List<String> imagePaths;
+    private final File outputDir;
+    private int nDecoder = 2, nWorker = 2, queueCapacity = 4;
+    private int tileSize = 0; // 分块SIFT的核心区域边长，0表示不分块
+    private SiftConfig config = SiftConfig.DEFAULT;
+    private boolean binaryFormat = true, quantize = false, visualize = false;
+
+    private final AtomicInteger nFailed = new AtomicInteger();
+    private final AtomicInteger nWritten = new AtomicInteger();
+
+    public BatchExtractor(List<String> imagePaths, File outputDir) {
+        this.imagePaths = imagePaths;
+        this.outputDir = outputDir;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.out.println("Usage: BatchExtractor <image dir or list file> <output dir> " +
+                    "[--decoders N] [--workers N] [--queue N] [--format bin|dat] [--quantize] [--visualize] [--low-memory] [--tile N] [--max-features N] [--grid N]");
+            return;
+        }
+        BatchExtractor extractor = new BatchExtractor(listImages(new File(args[0])), new File(args[1]));
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--decoders":
+                    extractor.nDecoder = Integer.parseInt(args[++i]);
+                    break;
+                case "--workers":
+                    extractor.nWorker = Integer.parseInt(args[++i]);
+                    break;
+                case "--queue":
+                    extractor.queueCapacity = Integer.parseInt(args[++i]);
+                    break;
+                case "--format":
+                    extractor.binaryFormat = !"dat".equals(args[++i]);
+                    break;
+                case "--quantize":
+                    extractor.quantize = true;
+                    break;
+                case "--visualize":
+                    extractor.visualize = true;
+                    break;
+                case "--tile":
+                    extractor.tileSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-features":
+                    extractor.config = extractor.config.toBuilder().maxFeatures(Integer.parseInt(args[++i])).build();
+                    break;
+                case "--grid":
+                    extractor.config = extractor.config.toBuilder().bucketGridSize(Integer.parseInt(args[++i])).build();
+                    break;
+                case "--low-memory":
+                    extractor.config = extractor.config.toBuilder().octaveAtATime(true).build();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option \"" + args[i] + "\".");
+            }
+        }
+        if (extractor.nDecoder < 1 || extractor.nWorker < 1 || extractor.queueCapacity < 1)
+            throw new IllegalArgumentException("--decoders, --workers and --queue must be at least 1, got " +
+                    extractor.nDecoder + ", " + extractor.nWorker + " and " + extractor.queueCapacity + ".");
+        extractor.run();
+    }
+
+    /**
+     * 列出需要处理的图像。如果input是目录，将返回目录下所有图像文件（按文件名排序）；否则将input视为列表文件，每个非空行是一条图像路径。
+     *
+     * @param input 图像目录或列表文件
+     * @return 图像路径列表
+     * @throws IOException 读取列表文件失败
+     */
+    public static List<String> listImages(File input) throws IOException {
+        List<String> imagePaths = new ArrayList<>();
+        if (input.isDirectory()) {
+            File[] files = input.listFiles();
+            if (files == null) throw new IOException("Failed to list directory \"" + input + "\".");
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName().toLowerCase();
+                for (String postfix : IMAGE_POSTFIXES) {
+                    if (file.isFile() && name.endsWith(postfix)) {
+                        imagePaths.add(file.getPath());
+                        break;
+                    }
+                }
+            }
+        } else {
+            for (String line : Files.readAllLines(input.toPath())) {
+                if (!line.trim().isEmpty()) imagePaths.add(line.trim());
+            }
+        }
+        return imagePaths;
+    }
+
+    /**
+     * 运行批量提取，并在结束时打印吞吐量。方法将阻塞直到所有图像处理完毕。
+     *
+     * @throws InterruptedException 如果等待各阶段结束时被中断，将抛出此异常
+     * @throws IOException          如果输出目录不存在且无法被创建，将抛出此异常
+     */
+    public void run() throws InterruptedException, IOException {
+        if (!outputDir.exists() && !outputDir.mkdirs())
+            throw new IOException("The folder does not exist and the program failed to make such a folder.");
+        List<String> outputNames = outputNames(imagePaths);
+        boolean verbose = GlobalParam.verbose;
+        GlobalParam.verbose = false; // 批处理期间不打印各阶段的进度，结束后恢复调用者的设置
+        try {
+            runStages(outputNames);
+        } finally {
+            GlobalParam.verbose = verbose;
+        }
+    }
+
+    private void runStages(List<String> outputNames) throws InterruptedException {
+        BlockingQueue<Job> decodedQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Job> resultQueue = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger nextImage = new AtomicInteger();
+        long startTime = System.nanoTime();
+
+        Thread[] decoders = new Thread[nDecoder];
+        for (int i = 0; i < nDecoder; i++) {
+            decoders[i] = new Thread(() -> decode(nextImage, outputNames, decodedQueue), "sift-decoder-" + i);
+            decoders[i].start();
+        }
+        Thread[] workers = new Thread[nWorker];
+        for (int i = 0; i < nWorker; i++) {
+            workers[i] = new Thread(() -> compute(decodedQueue, resultQueue), "sift-worker-" + i);
+            workers[i].start();
+        }
+        Thread writer = new Thread(() -> write(resultQueue), "sift-writer");
+        writer.start();
+
+        // 上游阶段全部结束后，向下游发送结束标记
+        for (Thread decoder : decoders) decoder.join();
+        for (int i = 0; i < nWorker; i++) decodedQueue.put(Job.END);
+        for (Thread worker : workers) worker.join();
+        resultQueue.put(Job.END);
+        writer.join();
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("%d images written, %d failed, %.3f s, %.3f images/s.%n",
+                nWritten.get(), nFailed.get(), seconds, nWritten.get() / seconds);
+    }
+
+    /**
+     * 为每张图像确定输出文件名（不含扩展名）：取图像文件名去掉最后一个扩展名，没有扩展名时取整个文件名。
+     * 与之前的输出文件名重复（不区分大小写，以兼容不区分大小写的文件系统）时，依次追加"_1"、"_2"等后缀直至不再重复。
+     *
+     * @param imagePaths 图像路径列表
+     * @return 与imagePaths一一对应的输出文件名
+     */
+    static List<String> outputNames(List<String> imagePaths) {
+        List<String> outputNames = new ArrayList<>(imagePaths.size());
+        HashSet<String> used = new HashSet<>();
+        for (String imagePath : imagePaths) {
+            String fileName = new File(imagePath).getName();
+            int dot = fileName.lastIndexOf('.');
+            String stem = dot > 0 ? fileName.substring(0, dot) : fileName;
+            String outputName = stem;
+            for (int n = 1; !used.add(outputName.toLowerCase(Locale.ROOT)); n++) outputName = stem + "_" + n;
+            if (!outputName.equals(stem))
+                Log.warning("Output name \"" + stem + "\" is already taken, results of \"" + imagePath + "\" are written as \"" + outputName + "\".");
+            outputNames.add(outputName);
+        }
+        return outputNames;
+    }
+
+    private void decode(AtomicInteger nextImage, List<String> outputNames, BlockingQueue<Job> decodedQueue) {
+        try {
+            for (int i = nextImage.getAndIncrement(); i < imagePaths.size(); i = nextImage.getAndIncrement()) {
+                String imagePath = imagePaths.get(i);
+                Job job;
+                try {
+                    Mat image = imread(imagePath);
+                    if (image.empty()) {
+                        Log.error("Failed to read image \"" + imagePath + "\".");
+                        nFailed.incrementAndGet();
+                        continue;
+                    }
+                    // 各Mat用完后立即释放本地内存，而不是等待垃圾回收，否则长时间的批处理中内存会持续增长
+                    Mat gray = new Mat();
+                    cvtColor(image, gray, COLOR_BGR2GRAY);
+                    Mat grayFloat = new Mat();
+                    normalize(gray, grayFloat, 0, 1, NORM_MINMAX, CV_32F);
+                    gray.release();
+                    if (!visualize) image.release();
+                    job = new Job(imagePath, outputNames.get(i), visualize ? image : null, grayFloat);
+                } catch (RuntimeException ex) {
+                    Log.error("Failed to decode image \"" + imagePath + "\": " + ex);
+                    nFailed.incrementAndGet();
+                    continue;
+                }
+                decodedQueue.put(job);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void compute(BlockingQueue<Job> decodedQueue, BlockingQueue<Job> resultQueue) {
+        try {
+            for (Job job = decodedQueue.take(); job != Job.END; job = decodedQueue.take()) {
+                try {
+                    if (tileSize > 0) {
+                        ArrayList<KeyPointX> keyPointXes = new TiledSIFT(job.grayFloat, tileSize, config).run();
+                        job.keyPointSet = keyPointXes == null ? null : KeyPointSet.fromKeyPointXes(keyPointXes);
+                    } else {
+                        try (SIFT sift = new SIFT(job.grayFloat, config)) {
+                            job.keyPointSet = sift.runPacked();
+                        }
+                    }
+                } catch (RuntimeException ex) {
+                    Log.error("Failed to extract features from \"" + job.imagePath + "\": " + ex);
+                } finally {
+                    job.grayFloat.release();
+                    job.grayFloat = null;
+                }
+                if (job.keyPointSet == null) {
+                    if (job.image != null) job.image.release();
+                    Log.error("Failed to extract features from \"" + job.imagePath + "\".");
+                    nFailed.incrementAndGet();
+                    continue;
+                }
+                resultQueue.put(job);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(BlockingQueue<Job> resultQueue) {
+        try {
+            for (Job job = resultQueue.take(); job != Job.END; job = resultQueue.take()) {
+                String imageName = job.outputName;
+                try {
+                    if (binaryFormat)
+                        IOUtil.writeKeyPointSetBinary(job.keyPointSet, Paths.get(outputDir.getPath(), imageName + ".bin").toString(), true, quantize);
+                    else
+                        IOUtil.writeKeyPointXes(job.keyPointSet.toKeyPointXes(), Paths.get(outputDir.getPath(), imageName + ".dat").toString(), true);
+                    if (job.image != null) {
+                        Mat imageWithMark = Visualization.visualize(job.image, job.keyPointSet.toKeyPoints(), true, true);
+                        imwrite(Paths.get(outputDir.getPath(), imageName + " sift.jpg").toString(), imageWithMark);
+                        imageWithMark.release();
+                    }
+                    nWritten.incrementAndGet();
+                } catch (IOException | RuntimeException ex) {
+                    Log.error("Failed to write results of \"" + job.imagePath + "\": " + ex.getMessage());
+                    nFailed.incrementAndGet();
+                } finally {
+                    if (job.image != null) job.image.release();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 在各阶段之间传递的一张图像及其处理结果
+     */
+    private static class Job {
+        static final Job END = new Job(null, null, null, null); // 结束标记
+
+        final String imagePath;
+        final String outputName;    // 输出文件名（不含扩展名）
+        final Mat image;            // 原始图像，仅在需要可视化时保留
+        Mat grayFloat;
+        KeyPointSet keyPointSet;
+
+        Job(String imagePath, String outputName, Mat image, Mat grayFloat) {
+            this.imagePath = imagePath;
+            this.outputName = outputName;
+            this.image = image;
+            this.grayFloat = grayFloat;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package core;
+
+import org.opencv.core.KeyPoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 以结构数组（struct-of-arrays）形式存储的候选极值点，每个候选点由坐标(x, y)、octave序号和DoG图像序号描述。
+ * 相比于为每个候选点创建一个KeyPoint对象，这种存储方式只需少量的基本类型数组。该类不是线程安全的。
+ */
+public class CandidateBuffer {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] xs, ys, octaves, layers;
+    private int size = 0;
+
+    public CandidateBuffer() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public CandidateBuffer(int capacity) {
+        capacity = Math.max(capacity, 1);
+        xs = new int[capacity];
+        ys = new int[capacity];
+        octaves = new int[capacity];
+        layers = new int[capacity];
+    }
+
+    /**
+     * 添加一个候选点
+     *
+     * @param x      横坐标（列指标），octave内的局部坐标
+     * @param y      纵坐标（行指标），octave内的局部坐标
+     * @param octave octave序号
+     * @param layer  octave内DoG图像的序号
+     */
+    public void add(int x, int y, int octave, int layer) {
+        ensureCapacity(size + 1);
+        xs[size] = x;
+        ys[size] = y;
+        octaves[size] = octave;
+        layers[size] = layer;
+        size++;
+    }
+
+    /**
+     * 将other中的全部候选点按原有顺序追加到此缓冲区的末尾
+     *
+     * @param other 另一个候选点缓冲区
+     */
+    public void addAll(CandidateBuffer other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.xs, 0, xs, size, other.size);
+        System.arraycopy(other.ys, 0, ys, size, other.size);
+        System.arraycopy(other.octaves, 0, octaves, size, other.size);
+        System.arraycopy(other.layers, 0, layers, size, other.size);
+        size += other.size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= xs.length) return;
+        int newCapacity = Math.max(capacity, xs.length * 2);
+        xs = Arrays.copyOf(xs, newCapacity);
+        ys = Arrays.copyOf(ys, newCapacity);
+        octaves = Arrays.copyOf(octaves, newCapacity);
+        layers = Arrays.copyOf(layers, newCapacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getX(int i) {
+        return xs[i];
+    }
+
+    public int getY(int i) {
+        return ys[i];
+    }
+
+    public int getOctave(int i) {
+        return octaves[i];
+    }
+
+    public int getLayer(int i) {
+        return layers[i];
+    }
+
+    /**
+     * 计算候选点的全局尺度σ × 2^(layer/s) × 2^octave，即toKeyPoints()中关键点的size
+     *
+     * @param i      候选点的序号
+     * @param config 配置，决定σ和s
+     * @return 候选点的全局尺度
+     */
+    public float getScale(int i, SiftConfig config) {
+        return (float) (config.sigma * Math.pow(2, layers[i] * 1.0 / config.s) * Math.pow(2, octaves[i]));
+    }
+
+    /**
+     * 计算候选点在其octave内的局部尺度，与Util.getLocalScale()作用于toKeyPoints()中对应关键点的结果相同
+     *
+     * @param i      候选点的序号
+     * @param config 配置，决定σ和s
+     * @return 候选点的局部尺度
+     */
+    public float getLocalScale(int i, SiftConfig config) {
+        return Util.global2LocalScale(getScale(i, config), octaves[i]);
+    }
+
+    /**
+     * 将候选点转换为KeyPoint列表。关键点的尺度为σ × 2^(layer/s) × 2^octave。
+     * SIFT内部的流水线不调用此方法，而是将缓冲区直接交给KeyPointLocator，只为通过定位的关键点创建KeyPoint；
+     * 此方法供ExtremaDetector.run()等需要KeyPoint列表的公开接口使用。
+     *
+     * @param config 配置，决定σ和s
+     * @return 与候选点顺序相同的粗糙关键点列表
+     */
+    public ArrayList<KeyPoint> toKeyPoints(SiftConfig config) {
+        ArrayList<KeyPoint> keyPoints = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            keyPoints.add(new KeyPoint(xs[i], ys[i], getScale(i, config), -1, 0, octaves[i]));
+        }
+        return keyPoints;
+    }
+}
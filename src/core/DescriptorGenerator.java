@@ -3,131 +3,158 @@ package core;
 import flib.MathX;
 import org.jblas.FloatMatrix;
 import org.opencv.core.KeyPoint;
-import org.opencv.core.Mat;
 
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
 import java.util.concurrent.TimeoutException;
 
-import static org.opencv.core.CvType.*;
-
 /**
  * 生成特征描述子（论文第6章）
- * 描述子的计算具有并行化实现，但默认关闭。实验发现并行化实现的效率比串行实现低，这可能是因为多个线程在访问同一个对象时的同步操作具有较大的开销。
+ * 描述子的计算默认在SiftExecutor的共享线程池中并行进行；每个线程使用独立的暂存区，输出顺序与串行实现相同。
  */
 public class DescriptorGenerator {
 
-    private static final int D = 4;                         // 一条轴上的子区域数量
-    private static final int N_BIN = 8;                     // 每张直方图的堆栈数量
-    private static final float DESCRIPTOR_MAX_VAL = 0.2f;   // 描述子中元素允许的最大值
+    public static final int DESCRIPTOR_LENGTH = SiftConfig.DEFAULT.descriptorLength;    // 默认配置下描述子的长度
+    public static final int HIST_LENGTH = SiftConfig.DEFAULT.histLength;                // 默认配置下生成描述子时所需暂存区的长度
 
+    private final SiftConfig config; // 子区域数量、直方图的堆栈数量及描述子元素的最大值取自config
     public ArrayList<KeyPointX> keyPointsWithDescriptor;
 
+    public DescriptorGenerator() {
+        this(SiftConfig.DEFAULT);
+    }
+
+    public DescriptorGenerator(SiftConfig config) {
+        this.config = config;
+    }
+
     public ArrayList<FloatMatrix> run(ArrayList<KeyPoint> keyPoints, ArrayList<Octave> octaves) throws InterruptedException, TimeoutException {
-        return run(keyPoints, octaves, GlobalParam.enableParallelDescriptorComputation);
+        return run(keyPoints, octaves, config.parallel);
     }
 
     public ArrayList<FloatMatrix> run(ArrayList<KeyPoint> keyPoints, ArrayList<Octave> octaves, boolean parallel) throws InterruptedException, TimeoutException {
-        System.out.print("Generating descriptors...");
-        //Timer timer = new Timer();
-        ArrayList<FloatMatrix> descriptors = new ArrayList<>(keyPoints.size());
-        keyPointsWithDescriptor = new ArrayList<>(keyPoints.size());
-
-        int nCore = Runtime.getRuntime().availableProcessors();
-        if (keyPoints.size() < nCore) parallel = false;
-
-        if (!parallel) {
-            for (KeyPoint keyPoint : keyPoints) {
-                FloatMatrix descriptor = generate(keyPoint, octaves);
-                descriptors.add(descriptor);
-                keyPointsWithDescriptor.add(new KeyPointX(keyPoint, descriptor));
-            }
-        } else {
-            // 任务划分
-            int perThreadWorkload = keyPoints.size() / nCore;
-            ArrayList<Integer> boundaries = new ArrayList<>();
-            for (int i = 0; i < nCore; i++) boundaries.add(i * perThreadWorkload);
-            boundaries.add(keyPoints.size());
-
-            ArrayList<ArrayList<FloatMatrix>> descriptorsCache = new ArrayList<>(nCore); // 暂存每个线程输出的结果
-            ArrayList<ArrayList<KeyPointX>> keyPointsCache = new ArrayList<>(nCore);
-            for (int i = 0; i < nCore; i++) {
-                descriptorsCache.add(new ArrayList<>());
-                keyPointsCache.add(new ArrayList<>());
-            }
+        KeyPointSet keyPointSet = runPacked(keyPoints, octaves, parallel);
+        keyPointsWithDescriptor = keyPointSet.toKeyPointXes();
+        return keyPointSet.toDescriptorMatrices();
+    }
 
-            // 并行描述子计算
-            ExecutorService executorService = Executors.newCachedThreadPool();
-            for (int i = 0; i < nCore; i++) { // i - 线程号
-                final int finalI = i;
-                executorService.execute(() -> {
-                    for (int k = boundaries.get(finalI); k < boundaries.get(finalI + 1); k++) { // k - 关键点号
-                        KeyPoint keyPoint = keyPoints.get(k);
-                        FloatMatrix descriptor = generate(keyPoint, octaves);
-                        descriptorsCache.get(finalI).add(descriptor);
-                        keyPointsCache.get(finalI).add(new KeyPointX(keyPoint, descriptor));
-                    }
-                });
-            }
-            executorService.shutdown();
-            long timeout = 3600;
-            if (!executorService.awaitTermination(timeout, TimeUnit.SECONDS)) {
-                throw new TimeoutException("Parallel pixel operations failed to finish within " + timeout + " seconds.");
-            }
+    public KeyPointSet runPacked(ArrayList<KeyPoint> keyPoints, ArrayList<Octave> octaves) throws InterruptedException, TimeoutException {
+        return runPacked(keyPoints, octaves, config.parallel);
+    }
 
-            // 列表合并
-            for (int i = 0; i < descriptorsCache.size(); i++) {
-                descriptors.addAll(descriptorsCache.get(i));
-                keyPointsWithDescriptor.addAll(keyPointsCache.get(i));
-            }
-        }
+    /**
+     * 计算全部关键点的描述子，结果以KeyPointSet的形式返回：描述子直接写入集合的描述子块，不为每个关键点创建对象。
+     * 并行模式下每个子任务使用独立的暂存区，第k个关键点的描述子总是写入第k个位置，输出顺序与串行模式相同。
+     *
+     * @param keyPoints 带有朝向的关键点
+     * @param octaves   octaves
+     * @param parallel  是否并行计算
+     * @return 带描述子的关键点集合
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public KeyPointSet runPacked(ArrayList<KeyPoint> keyPoints, ArrayList<Octave> octaves, boolean parallel) throws InterruptedException, TimeoutException {
+        if (GlobalParam.verbose) System.out.print("Generating descriptors...");
+        if (config.gradientCache) GradientPlane.prepare(keyPoints, octaves, config); // 朝向计算阶段已构建的梯度平面不会重复计算
+        KeyPointSet keyPointSet = KeyPointSet.withKeyPoints(keyPoints, config.descriptorLength);
+        float[] out = keyPointSet.descriptors;
+
+        if (keyPoints.size() < SiftExecutor.getParallelism()) parallel = false;
 
-        System.out.println("DONE");
-        //timer.endAndPrint("Descriptor generation");
-        return descriptors;
+        SiftExecutor.RangeOperation operation = (start, end) -> {
+            float[] hist = new float[config.histLength]; // 每个子任务使用独立的暂存区
+            for (int k = start; k < end; k++) generate(keyPoints.get(k), octaves, hist, out, k * config.descriptorLength);
+        };
+        if (parallel) SiftExecutor.parallelFor(0, keyPoints.size(), operation);
+        else operation.func(0, keyPoints.size());
+
+        if (GlobalParam.verbose) System.out.println("DONE");
+        return keyPointSet;
     }
 
-    @SuppressWarnings("DuplicatedCode")
+    /**
+     * 计算关键点的描述子。
+     *
+     * @param keyPoint 带有朝向的关键点
+     * @param octaves  octaves
+     * @return 长度为config.descriptorLength的描述子
+     */
     public FloatMatrix generate(KeyPoint keyPoint, ArrayList<Octave> octaves) {
-        int localGaussianIdx = Util.getLocalGaussianImageId(keyPoint);
+        float[] descriptor = new float[config.descriptorLength];
+        generate(keyPoint, octaves, new float[config.histLength], descriptor, 0);
+        return new FloatMatrix(descriptor);
+    }
+
+    /**
+     * 计算描述子的采样半径，即生成描述子时读取的像素与关键点的最大距离（不含计算梯度所需的1个像素）
+     *
+     * @param localScale 关键点在所在octave内的局部尺度
+     * @param config     配置，决定一条轴上的子区域数量
+     * @return 以所在octave的像素计的采样半径
+     */
+    public static int supportRadius(float localScale, SiftConfig config) {
+        float subregionWidth = 3 * localScale; // 子区域的半径
+        return Math.round((float) Math.sqrt(2) / 2 * subregionWidth * (config.descriptorWidth + 1));
+    }
+
+    /**
+     * 计算关键点的描述子，并将结果写入out[offset, offset + config.descriptorLength)。
+     * 方法在hist中累加直方图，除此之外不分配任何对象；调用者可以在多个关键点之间复用hist和out，但不能在多个线程间共享同一个hist。
+     *
+     * @param keyPoint 带有朝向的关键点
+     * @param octaves  octaves
+     * @param hist     长度至少为config.histLength的暂存区，其原有内容将被覆盖
+     * @param out      输出数组
+     * @param offset   描述子在out中的起始位置
+     */
+    @SuppressWarnings("DuplicatedCode")
+    public void generate(KeyPoint keyPoint, ArrayList<Octave> octaves, float[] hist, float[] out, int offset) {
+        final int D = config.descriptorWidth, N_BIN = config.descriptorBins;
+        int localGaussianIdx = Util.getLocalGaussianImageId(keyPoint, config);
         float localScale = Util.getLocalScale(keyPoint);
         GaussianImage gaussianImage = octaves.get(keyPoint.octave).gaussianImages.get(localGaussianIdx);
-        int width = gaussianImage.image.width(), height = gaussianImage.image.height();
+        FloatImage plane = gaussianImage.plane;
+        GradientPlane gradient = gaussianImage.gradient; // 未缓存时为null，此时在采样时计算梯度
+        int width = plane.width, height = plane.height;
         float subregionWidth = 3 * localScale; // 子区域的半径
-        int radius = Math.round((float) Math.sqrt(2) / 2 * subregionWidth * (D + 1)); // 采样半径
+        int radius = supportRadius(localScale, config); // 采样半径
         float keyPointRad = (float) MathX.deg2Rad(keyPoint.angle); // 中心像素的朝向（弧度制）
-        FloatMatrix spatialBinCenters = new FloatMatrix(new float[]{-2, -1, 0, 1, 2}); // 空间堆栈的中心位置
-        float spatialBinWidth = 1;
-        FloatMatrix orientationsBinCenters = new FloatMatrix(N_BIN); // 朝向堆栈的中心位置
+        float sinRad = (float) Math.sin(keyPointRad), cosRad = (float) Math.cos(keyPointRad);
         float orientationBinWidth = 2 * (float) Math.PI / N_BIN;
-        for (int i = 0; i < N_BIN; i++)
-            orientationsBinCenters.put(i, i * orientationBinWidth + orientationBinWidth / 2);
+        float keyPointX = (float) keyPoint.pt.x, keyPointY = (float) keyPoint.pt.y;
 
-        Mat tensor = Mat.zeros(new int[]{D + 2, D + 2, N_BIN}, CV_32F); // 由于是在5×5的网格内采样的，因此会有6×6个网格顶点，边缘的2行2列会被舍弃
+        // 直方图按(行, 列, 朝向)的顺序展平存储。由于是在5×5的网格内采样的，因此会有6×6个网格顶点，边缘的2行2列会被舍弃
+        Arrays.fill(hist, 0, config.histLength, 0);
 
         // 采样
         for (int i = -radius; i <= radius; i++) {
-            int x = Math.round((float) keyPoint.pt.x + i); // 像素坐标
+            int x = Math.round(keyPointX + i); // 像素坐标
             if (x < 1 || x >= width - 1) continue; // 计算梯度需要左右两个像素的值，因此边界检查需要留出1的边距
             for (int j = -radius; j <= radius; j++) {
-                int y = Math.round((float) keyPoint.pt.y + j);
+                int y = Math.round(keyPointY + j);
                 if (y < 1 || y >= height - 1) continue;
 
                 // 局部采样坐标转换到与朝向相关的局部坐标系
-                float yLocal = j * (float) Math.sin(keyPointRad) + i * (float) Math.cos(keyPointRad);
-                float xLocal = j * (float) Math.cos(keyPointRad) - i * (float) Math.sin(keyPointRad);
+                float yLocal = j * sinRad + i * cosRad;
+                float xLocal = j * cosRad - i * sinRad;
                 float yNorm = yLocal / subregionWidth, xNorm = xLocal / subregionWidth; // 归一化并约束在(-(D+1)/2,(D+1)/2)范围，越界的点跳过
                 if (yNorm <= -(D + 1) / 2.0f || yNorm >= (D + 1) / 2.0f || xNorm <= -(D + 1) / 2.0f || xNorm >= (D + 1) / 2.0f)
                     continue;
 
                 // 计算梯度、权重和朝向
-                FloatMatrix gradient = Util.computeGradient(x, y, gaussianImage.image);
-                float magnitude = gradient.norm2();
+                int idx = plane.index(x, y);
+                float magnitude, orientation;
+                if (gradient != null) {
+                    magnitude = gradient.magnitude[idx];
+                    orientation = gradient.angle[idx];
+                } else {
+                    float dx = (plane.data[idx + 1] - plane.data[idx - 1]) / 2;
+                    float dy = (plane.data[idx + plane.stride] - plane.data[idx - plane.stride]) / 2;
+                    magnitude = (float) Math.sqrt(dx * dx + dy * dy);
+                    orientation = (float) (Math.atan2(dy, dx) + Math.PI);
+                }
                 float weight = (float) MathX.gauss(Math.sqrt(yNorm * yNorm + xNorm * xNorm), 0.5 * D);
                 float weightedMagnitude = weight * magnitude;
-                float orientation = (float) (Math.atan2(gradient.get(1), gradient.get(0)) + Math.PI);
                 float orientationLocal = (orientation - keyPointRad + 2 * (float) Math.PI) % (2 * (float) Math.PI); // [0,2Pi)
 
                 // 计算相邻的bin序号
@@ -168,57 +195,48 @@ public class DescriptorGenerator {
                 float c110 = c11 * orientationFraction;
                 float c111 = c11 * (1 - orientationFraction);
 
-                // 更新张量
-                /*System.out.printf("xBinLeft: %d, yBinLeft: %d, orientationBinLeft: %d, tensor size: {%d, %d, %d}\n", xBinLeft, yBinLeft, orientationBinLeft,
-                        D + 2, D + 2, N_BIN);*/
-                Util.autoIncrement(tensor, yBinLeft, xBinLeft, orientationBinLeft, c000);
-                Util.autoIncrement(tensor, yBinLeft, xBinLeft, orientationBinRight, c001);
-                Util.autoIncrement(tensor, yBinLeft, xBinRight, orientationBinLeft, c100); // x轴对应cxxx的第1维
-                Util.autoIncrement(tensor, yBinLeft, xBinRight, orientationBinRight, c101);
-                Util.autoIncrement(tensor, yBinRight, xBinLeft, orientationBinLeft, c010);
-                Util.autoIncrement(tensor, yBinRight, xBinLeft, orientationBinRight, c011);
-                Util.autoIncrement(tensor, yBinRight, xBinRight, orientationBinLeft, c110);
-                Util.autoIncrement(tensor, yBinRight, xBinRight, orientationBinRight, c111);
+                // 更新直方图
+                int leftLeft = (yBinLeft * (D + 2) + xBinLeft) * N_BIN, leftRight = (yBinLeft * (D + 2) + xBinRight) * N_BIN; // x轴对应cxxx的第1维
+                int rightLeft = (yBinRight * (D + 2) + xBinLeft) * N_BIN, rightRight = (yBinRight * (D + 2) + xBinRight) * N_BIN;
+                hist[leftLeft + orientationBinLeft] += c000;
+                hist[leftLeft + orientationBinRight] += c001;
+                hist[leftRight + orientationBinLeft] += c100;
+                hist[leftRight + orientationBinRight] += c101;
+                hist[rightLeft + orientationBinLeft] += c010;
+                hist[rightLeft + orientationBinRight] += c011;
+                hist[rightRight + orientationBinLeft] += c110;
+                hist[rightRight + orientationBinRight] += c111;
             }
         }
 
-        FloatMatrix descriptor = new FloatMatrix(0);
-        for (int tRow = 1; tRow <= D; tRow++) { // 边缘2行2列舍弃
+        // 边缘2行2列舍弃，其余直方图依次写入out
+        int dst = offset;
+        for (int tRow = 1; tRow <= D; tRow++) {
             for (int tCol = 1; tCol <= D; tCol++) {
-                ArrayList<Double> histArray = Util.flatten(tensor, tRow, tCol);
-                FloatMatrix histJblas = new FloatMatrix(histArray.size());
-                for (int i = 0; i < histArray.size(); i++) {
-                    Double elem = histArray.get(i);
-                    float flt = Float.parseFloat(String.valueOf(elem));
-                    histJblas.put(i, flt);
-                }
-                descriptor = FloatMatrix.concatVertically(descriptor, histJblas);
+                System.arraycopy(hist, (tRow * (D + 2) + tCol) * N_BIN, out, dst, N_BIN);
+                dst += N_BIN;
             }
         }
 
-        descriptor = postProcess(descriptor);
-
-        return descriptor;
+        postProcess(out, offset);
     }
 
     /**
-     * 对描述子进行后处理：
+     * 原地对描述子进行后处理：
      * 1. 将传入的描述子归一化到单位长度；
-     * 2. 对任何超过允许的最大值（[Lowe 04]中规定为0.2）的元素，截断到允许的最大值；
+     * 2. 对任何超过允许的最大值（config.descriptorMaxValue，[Lowe 04]中规定为0.2）的元素，截断到允许的最大值；
      * 3. 对向量重新进行归一化。
      *
-     * @param descriptor 描述子
-     * @return 后处理后的描述子
+     * @param descriptors 存放描述子的数组
+     * @param offset      描述子在descriptors中的起始位置
      */
-    private FloatMatrix postProcess(FloatMatrix descriptor) {
-        FloatMatrix normalized = Util.normalize(descriptor);
-        for (int i = 0; i < descriptor.length; i++) {
-            float val = normalized.get(i);
-            if (val > DESCRIPTOR_MAX_VAL) val = DESCRIPTOR_MAX_VAL;
-            normalized.put(i, val);
+    private void postProcess(float[] descriptors, int offset) {
+        int length = config.descriptorLength;
+        Util.normalize(descriptors, offset, length);
+        for (int i = offset; i < offset + length; i++) {
+            if (descriptors[i] > config.descriptorMaxValue) descriptors[i] = config.descriptorMaxValue;
         }
-        normalized = Util.normalize(normalized);
-        return normalized;
+        Util.normalize(descriptors, offset, length);
     }
 
     /**
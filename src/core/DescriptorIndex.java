@@ -0,0 +1,494 @@
+package core;
+
+import io.MappedKeyPointFile;
+import org.opencv.core.DMatch;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 描述子的近似最近邻索引：随机k-d森林，配合跨树共享的best-bin-first搜索（[Lowe 04]第7.1节；[Muja and Lowe 09]）。
+ * 每棵树先随机打乱描述子的顺序，再在方差最大的若干维中随机选择划分维度，以该维的均值作为划分值；均值划分严重失衡时改用中位数，
+ * 因此树的深度是有界的。查询时，所有树的未访问分支放入同一个优先队列，
+ * 按与查询点的距离下界由近到远展开，检查的描述子数量达到maxChecks后停止。树的数量越多、maxChecks越大，召回率越高，查询越慢。
+ * 索引建立后是只读的，可以在多个线程中同时查询。
+ * 描述子按行紧密存储在一个float数组或一个FloatBuffer中，索引直接引用而不复制；fromFile()直接在内存映射的文件上建立索引。
+ * 单个数组或缓冲区最多容纳2^31个元素（约1600万个128维描述子），更大的数据集需要分片建立多个索引。
+ */
+public class DescriptorIndex {
+    private static final int N_CANDIDATE_DIM = 5;       // 在方差最大的前几维中随机选择划分维度
+    private static final int N_VARIANCE_SAMPLE = 100;   // 估计方差时使用的样本数量
+    private static final int LEAF_SIZE = 8;             // 叶节点最多包含的描述子数量
+
+    private final Descriptors data;
+    private final int nPoints, dim;
+    private final Tree[] trees;
+
+    /**
+     * 建立索引。各棵树在SiftExecutor的共享线程池中并行建立。
+     *
+     * @param data    按行紧密存储的描述子，索引会直接引用此数组而不复制，建立索引后不应再修改
+     * @param nPoints 描述子数量
+     * @param dim     描述子维度
+     * @param nTrees  随机k-d树的数量
+     * @param seed    随机种子；相同的数据和种子会得到相同的索引
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public DescriptorIndex(float[] data, int nPoints, int dim, int nTrees, long seed) throws InterruptedException, TimeoutException {
+        this(new ArrayDescriptors(data), nPoints, dim, nTrees, seed);
+    }
+
+    /**
+     * 在FloatBuffer（如MappedKeyPointFile.getDescriptors()返回的内存映射缓冲区）上建立索引。各棵树在SiftExecutor的共享线程池中并行建立。
+     *
+     * @param data    按行紧密存储的描述子，从data的第0个元素开始；索引会直接引用此缓冲区而不复制，建立索引后不应再修改
+     * @param nPoints 描述子数量
+     * @param dim     描述子维度
+     * @param nTrees  随机k-d树的数量
+     * @param seed    随机种子；相同的数据和种子会得到相同的索引
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public DescriptorIndex(FloatBuffer data, int nPoints, int dim, int nTrees, long seed) throws InterruptedException, TimeoutException {
+        this(new BufferDescriptors(data), nPoints, dim, nTrees, seed);
+    }
+
+    private DescriptorIndex(Descriptors data, int nPoints, int dim, int nTrees, long seed) throws InterruptedException, TimeoutException {
+        if (nPoints < 0 || dim < 0)
+            throw new IllegalArgumentException("Invalid data matrix of " + nPoints + " descriptors of dimension " + dim + ".");
+        if (data.length() < (long) nPoints * dim)
+            throw new IllegalArgumentException("Data matrix holds fewer than " + nPoints + " descriptors of dimension " + dim + ".");
+        if (nTrees < 1) throw new IllegalArgumentException("At least one tree is required, got " + nTrees + ".");
+        this.data = data;
+        this.nPoints = nPoints;
+        this.dim = dim;
+        this.trees = new Tree[nTrees];
+        SiftExecutor.parallelFor(0, nTrees, 1, (start, end) -> {
+            for (int t = start; t < end; t++) trees[t] = new Tree(new Random(seed + t));
+        });
+    }
+
+    public DescriptorIndex(List<KeyPointX> keyPointXes, int nTrees) throws InterruptedException, TimeoutException {
+        this(DescriptorMatcher.packDescriptors(keyPointXes), keyPointXes.size(),
+                keyPointXes.isEmpty() ? 0 : keyPointXes.get(0).descriptor.length, nTrees, 0);
+    }
+
+    /**
+     * 以二进制关键点文件中的全部描述子建立索引。索引直接读取内存映射的描述子块而不复制到堆中，量化存储的描述子在计算距离时还原为float。
+     * 文件关闭后映射仍然有效，但文件内容在索引的生命周期内不应被修改。
+     *
+     * @param file   二进制关键点文件
+     * @param nTrees 随机k-d树的数量
+     * @return 描述子索引
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public static DescriptorIndex fromFile(MappedKeyPointFile file, int nTrees) throws InterruptedException, TimeoutException {
+        Descriptors data = file.isQuantized()
+                ? new QuantizedDescriptors(file.getQuantizedDescriptors(), file.getQuantizationScale())
+                : new BufferDescriptors(file.getDescriptors());
+        return new DescriptorIndex(data, file.size(), file.getDescriptorLength(), nTrees, 0);
+    }
+
+    public int size() {
+        return nPoints;
+    }
+
+    /**
+     * 近似k近邻查询。查询点在SiftExecutor的共享线程池中并行处理。
+     *
+     * @param queries   按行紧密存储的查询描述子
+     * @param nQuery    查询描述子的数量
+     * @param k         近邻数量
+     * @param maxChecks 每个查询最多检查的描述子数量，用于在召回率和速度之间权衡
+     * @return 第i个元素为第i个查询描述子的近似k近邻，按距离（欧氏距离）升序排列；找到的近邻可能少于k个
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public DMatch[][] knnSearch(float[] queries, int nQuery, int k, int maxChecks) throws InterruptedException, TimeoutException {
+        if (queries.length < (long) nQuery * dim)
+            throw new IllegalArgumentException("Query matrix holds fewer than " + nQuery + " descriptors of dimension " + dim + ".");
+        if (k < 1) throw new IllegalArgumentException("k must be positive, got " + k + ".");
+        DMatch[][] matches = new DMatch[nQuery][];
+        SiftExecutor.parallelFor(0, nQuery, (start, end) -> {
+            Searcher searcher = new Searcher(k);
+            for (int q = start; q < end; q++) {
+                int found = searcher.search(queries, q * dim, maxChecks);
+                matches[q] = new DMatch[found];
+                for (int r = 0; r < found; r++)
+                    matches[q][r] = new DMatch(q, searcher.bestIds[r], (float) Math.sqrt(searcher.bestDists[r]));
+            }
+        });
+        return matches;
+    }
+
+    /**
+     * 按行紧密存储的描述子。元素总数不超过2^31，因此元素的位置可以用int表示。
+     */
+    private static abstract class Descriptors {
+        /**
+         * @return 元素总数
+         */
+        abstract long length();
+
+        /**
+         * @return 第i个元素
+         */
+        abstract float get(int i);
+
+        /**
+         * 计算查询点与从base开始的描述子之间的欧氏距离的平方。距离达到bound后可以提前返回任意不小于bound的值。
+         */
+        abstract float squaredDistance(float[] query, int queryOffset, int base, int dim, float bound);
+    }
+
+    private static class ArrayDescriptors extends Descriptors {
+        final float[] data;
+
+        ArrayDescriptors(float[] data) {
+            this.data = data;
+        }
+
+        @Override
+        long length() {
+            return data.length;
+        }
+
+        @Override
+        float get(int i) {
+            return data[i];
+        }
+
+        @Override
+        float squaredDistance(float[] query, int queryOffset, int base, int dim, float bound) {
+            float dist = 0;
+            for (int d = 0; d < dim; d++) {
+                float diff = query[queryOffset + d] - data[base + d];
+                dist += diff * diff;
+                if ((d & 15) == 15 && dist >= bound) return dist; // 提前结束已经不可能成为近邻的计算
+            }
+            return dist;
+        }
+    }
+
+    private static class BufferDescriptors extends Descriptors {
+        final FloatBuffer data;
+
+        BufferDescriptors(FloatBuffer data) {
+            this.data = data.duplicate();
+            this.data.position(0);
+        }
+
+        @Override
+        long length() {
+            return data.limit();
+        }
+
+        @Override
+        float get(int i) {
+            return data.get(i);
+        }
+
+        @Override
+        float squaredDistance(float[] query, int queryOffset, int base, int dim, float bound) {
+            float dist = 0;
+            for (int d = 0; d < dim; d++) {
+                float diff = query[queryOffset + d] - data.get(base + d);
+                dist += diff * diff;
+                if ((d & 15) == 15 && dist >= bound) return dist;
+            }
+            return dist;
+        }
+    }
+
+    /**
+     * 量化为uint8的描述子，元素 = uint8值 / scale
+     */
+    private static class QuantizedDescriptors extends Descriptors {
+        final ByteBuffer data;
+        final float scale;
+
+        QuantizedDescriptors(ByteBuffer data, float scale) {
+            this.data = data.duplicate();
+            this.data.position(0);
+            this.scale = scale;
+        }
+
+        @Override
+        long length() {
+            return data.limit();
+        }
+
+        @Override
+        float get(int i) {
+            return (data.get(i) & 0xFF) / scale;
+        }
+
+        @Override
+        float squaredDistance(float[] query, int queryOffset, int base, int dim, float bound) {
+            float dist = 0;
+            for (int d = 0; d < dim; d++) {
+                float diff = query[queryOffset + d] - (data.get(base + d) & 0xFF) / scale;
+                dist += diff * diff;
+                if ((d & 15) == 15 && dist >= bound) return dist;
+            }
+            return dist;
+        }
+    }
+
+    private float squaredDistance(float[] query, int queryOffset, int point, float bound) {
+        return data.squaredDistance(query, queryOffset, point * dim, dim, bound);
+    }
+
+    /**
+     * 随机k-d树。节点以数组形式存储：内部节点记录划分维度和划分值，叶节点记录其在indices中对应的区间。
+     */
+    private class Tree {
+        final int[] indices;    // 描述子序号的排列，每个叶节点对应其中连续的一段
+        int[] splitDims = new int[16], lefts = new int[16], rights = new int[16]; // 叶节点的splitDims为-1，lefts和rights为indices中的区间
+        float[] splitVals = new float[16];
+        int nNode = 0;
+
+        Tree(Random random) {
+            indices = new int[nPoints];
+            for (int i = 0; i < nPoints; i++) indices[i] = i;
+            for (int i = nPoints - 1; i > 0; i--) { // 打乱顺序，使每个节点用于估计方差的前N_VARIANCE_SAMPLE个描述子是随机样本
+                int j = random.nextInt(i + 1);
+                int tmp = indices[i];
+                indices[i] = indices[j];
+                indices[j] = tmp;
+            }
+            if (nPoints > 0) build(0, nPoints, random);
+        }
+
+        private int newNode() {
+            if (nNode == splitDims.length) {
+                int capacity = nNode * 2;
+                splitDims = Arrays.copyOf(splitDims, capacity);
+                lefts = Arrays.copyOf(lefts, capacity);
+                rights = Arrays.copyOf(rights, capacity);
+                splitVals = Arrays.copyOf(splitVals, capacity);
+            }
+            return nNode++;
+        }
+
+        private int build(int start, int end, Random random) {
+            int node = newNode();
+            if (end - start <= LEAF_SIZE || dim == 0) {
+                makeLeaf(node, start, end);
+                return node;
+            }
+
+            // 估计各维的均值和方差
+            int nSample = Math.min(end - start, N_VARIANCE_SAMPLE);
+            double[] mean = new double[dim], variance = new double[dim];
+            for (int s = 0; s < nSample; s++) {
+                int base = indices[start + s] * dim;
+                for (int d = 0; d < dim; d++) mean[d] += data.get(base + d);
+            }
+            for (int d = 0; d < dim; d++) mean[d] /= nSample;
+            for (int s = 0; s < nSample; s++) {
+                int base = indices[start + s] * dim;
+                for (int d = 0; d < dim; d++) {
+                    double diff = data.get(base + d) - mean[d];
+                    variance[d] += diff * diff;
+                }
+            }
+
+            // 在方差最大的N_CANDIDATE_DIM维中随机选择划分维度
+            int[] topDims = new int[Math.min(N_CANDIDATE_DIM, dim)];
+            Arrays.fill(topDims, -1);
+            for (int d = 0; d < dim; d++) {
+                for (int r = 0; r < topDims.length; r++) {
+                    if (topDims[r] == -1 || variance[d] > variance[topDims[r]]) {
+                        System.arraycopy(topDims, r, topDims, r + 1, topDims.length - r - 1);
+                        topDims[r] = d;
+                        break;
+                    }
+                }
+            }
+            int splitDim = topDims[random.nextInt(topDims.length)];
+            float splitVal = (float) mean[splitDim];
+
+            // 按划分值将区间分为两部分
+            int lo = start, hi = end - 1;
+            while (lo <= hi) {
+                if (value(indices[lo], splitDim) < splitVal) {
+                    lo++;
+                } else {
+                    int tmp = indices[lo];
+                    indices[lo] = indices[hi];
+                    indices[hi--] = tmp;
+                }
+            }
+            // 样本的均值不能代表整个区间（如数据分布严重偏斜）时，一侧可能不足四分之一，甚至为空；此时改为按中位数划分，保证树的深度为O(log n)
+            if (Math.min(lo - start, end - lo) < (end - start) / 4) {
+                lo = (start + end) >>> 1;
+                select(start, end, lo, splitDim, random);
+                splitVal = value(indices[lo], splitDim);
+            }
+
+            splitDims[node] = splitDim;
+            splitVals[node] = splitVal;
+            int left = build(start, lo, random);
+            int right = build(lo, end, random);
+            lefts[node] = left;
+            rights[node] = right;
+            return node;
+        }
+
+        private float value(int point, int d) {
+            return data.get(point * dim + d);
+        }
+
+        /**
+         * 重排indices[start, end)，使第k个元素在第d维上的值位于排序后的位置：其前面的元素不大于它，其后面的元素不小于它（快速选择）。
+         */
+        private void select(int start, int end, int k, int d, Random random) {
+            int lo = start, hi = end - 1;
+            while (lo < hi) {
+                float pivot = value(indices[lo + random.nextInt(hi - lo + 1)], d);
+                int i = lo, j = hi;
+                while (i <= j) {
+                    while (value(indices[i], d) < pivot) i++;
+                    while (value(indices[j], d) > pivot) j--;
+                    if (i <= j) {
+                        int tmp = indices[i];
+                        indices[i++] = indices[j];
+                        indices[j--] = tmp;
+                    }
+                }
+                if (k <= j) hi = j;
+                else if (k >= i) lo = i;
+                else return;
+            }
+        }
+
+        private void makeLeaf(int node, int start, int end) {
+            splitDims[node] = -1;
+            lefts[node] = start;
+            rights[node] = end;
+        }
+    }
+
+    /**
+     * 单个线程使用的查询状态，包括候选近邻、分支优先队列和已检查描述子的标记，在同一线程的多次查询之间复用。
+     */
+    private class Searcher {
+        final int k;
+        final float[] bestDists;
+        final int[] bestIds;
+        int nBest;
+        final long[] checked = new long[(nPoints + 63) / 64];    // 已检查描述子的位图，避免在不同的树中重复计算
+        int[] checkedPoints = new int[64];                       // 本次查询中已检查的描述子，查询结束后据此清空位图
+        float[] heapKeys = new float[64];                        // 分支优先队列（二叉最小堆），键为距离下界
+        int[] heapTrees = new int[64], heapNodes = new int[64];
+        int heapSize;
+
+        Searcher(int k) {
+            this.k = k;
+            bestDists = new float[k];
+            bestIds = new int[k];
+        }
+
+        /**
+         * 查询一个描述子的近似k近邻，结果存放在bestDists和bestIds的前若干个元素中
+         *
+         * @return 找到的近邻数量
+         */
+        int search(float[] query, int queryOffset, int maxChecks) {
+            nBest = 0;
+            heapSize = 0;
+            int nChecked = 0;
+            for (int t = 0; t < trees.length; t++) nChecked = descend(t, 0, 0, query, queryOffset, nChecked);
+            while (heapSize > 0 && (nChecked < maxChecks || nBest < k)) {
+                float bound = heapKeys[0];
+                int t = heapTrees[0], node = heapNodes[0];
+                pop();
+                if (nBest == k && bound >= bestDists[k - 1]) break; // 剩余分支都不可能包含更近的点
+                nChecked = descend(t, node, bound, query, queryOffset, nChecked);
+            }
+            for (int i = 0; i < nChecked; i++) checked[checkedPoints[i] >>> 6] = 0; // 只清空被标记过的部分，而不是整个位图
+            return nBest;
+        }
+
+        /**
+         * 从node开始沿更近的一侧下降到叶节点，并将另一侧放入优先队列
+         */
+        private int descend(int t, int node, float bound, float[] query, int queryOffset, int nChecked) {
+            Tree tree = trees[t];
+            while (tree.splitDims[node] != -1) {
+                float diff = query[queryOffset + tree.splitDims[node]] - tree.splitVals[node];
+                int near = diff < 0 ? tree.lefts[node] : tree.rights[node];
+                int far = diff < 0 ? tree.rights[node] : tree.lefts[node];
+                push(bound + diff * diff, t, far);
+                node = near;
+            }
+            for (int i = tree.lefts[node]; i < tree.rights[node]; i++) {
+                int point = tree.indices[i];
+                if ((checked[point >>> 6] & (1L << point)) != 0) continue;
+                checked[point >>> 6] |= 1L << point;
+                if (nChecked == checkedPoints.length) checkedPoints = Arrays.copyOf(checkedPoints, nChecked * 2);
+                checkedPoints[nChecked++] = point;
+                float worst = nBest == k ? bestDists[k - 1] : Float.POSITIVE_INFINITY;
+                float dist = squaredDistance(query, queryOffset, point, worst);
+                if (dist < worst) insert(dist, point);
+            }
+            return nChecked;
+        }
+
+        private void insert(float dist, int point) {
+            int pos = nBest < k ? nBest++ : k - 1;
+            while (pos > 0 && bestDists[pos - 1] > dist) {
+                bestDists[pos] = bestDists[pos - 1];
+                bestIds[pos] = bestIds[pos - 1];
+                pos--;
+            }
+            bestDists[pos] = dist;
+            bestIds[pos] = point;
+        }
+
+        private void push(float key, int t, int node) {
+            if (heapSize == heapKeys.length) {
+                heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+                heapTrees = Arrays.copyOf(heapTrees, heapSize * 2);
+                heapNodes = Arrays.copyOf(heapNodes, heapSize * 2);
+            }
+            int pos = heapSize++;
+            while (pos > 0 && heapKeys[(pos - 1) >>> 1] > key) {
+                int parent = (pos - 1) >>> 1;
+                heapKeys[pos] = heapKeys[parent];
+                heapTrees[pos] = heapTrees[parent];
+                heapNodes[pos] = heapNodes[parent];
+                pos = parent;
+            }
+            heapKeys[pos] = key;
+            heapTrees[pos] = t;
+            heapNodes[pos] = node;
+        }
+
+        private void pop() {
+            heapSize--;
+            float key = heapKeys[heapSize];
+            int t = heapTrees[heapSize], node = heapNodes[heapSize];
+            int pos = 0;
+            while (2 * pos + 1 < heapSize) {
+                int child = 2 * pos + 1;
+                if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) child++;
+                if (heapKeys[child] >= key) break;
+                heapKeys[pos] = heapKeys[child];
+                heapTrees[pos] = heapTrees[child];
+                heapNodes[pos] = heapNodes[child];
+                pos = child;
+            }
+            heapKeys[pos] = key;
+            heapTrees[pos] = t;
+            heapNodes[pos] = node;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package core;
+
+import org.opencv.core.DMatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 暴力描述子匹配器，支持k近邻匹配和Lowe比率测试。
+ * 训练集描述子按TILE行一块重新排列，块内按列存储（第d维在前，TILE个描述子在后），计算距离时最内层循环对TILE个训练描述子逐元素累加，
+ * 不含跨迭代的归约，因此可以被JIT自动向量化；每一块约32KB，在一组查询描述子之间复用时可以常驻缓存。查询描述子按行并行处理。
+ * 描述子矩阵均为按行紧密存储的float数组，第i个描述子位于[i * dim, (i + 1) * dim)。
+ * 下标以int计算：构造和匹配前检查矩阵（包括按块填充后的训练集）的元素数不超过Integer.MAX_VALUE，因此下标运算不会溢出。
+ */
+public class DescriptorMatcher {
+    private static final int TILE = 64;         // 每块包含的训练描述子数量
+    private static final int QUERY_BLOCK = 16;  // 共同遍历训练集的查询描述子数量
+
+    private final int nTrain, dim;
+    private final float[] tiles; // 按块重新排列的训练描述子，不足一块的部分以0填充
+
+    /**
+     * 构造函数。
+     *
+     * @param train  按行紧密存储的训练描述子
+     * @param nTrain 训练描述子的数量
+     * @param dim    描述子的维度
+     * @throws IllegalArgumentException 如果train中的描述子不足nTrain个，或按块填充后的训练集超过Integer.MAX_VALUE个元素，将抛出此异常。
+     */
+    public DescriptorMatcher(float[] train, int nTrain, int dim) {
+        if (train.length < (long) nTrain * dim)
+            throw new IllegalArgumentException("Train matrix holds fewer than " + nTrain + " descriptors of dimension " + dim + ".");
+        this.nTrain = nTrain;
+        this.dim = dim;
+        int nTile = (nTrain + TILE - 1) / TILE;
+        tiles = new float[checkedLength((long) nTile * TILE, dim)];
+        for (int i = 0; i < nTrain; i++) {
+            int tileBase = i / TILE * TILE * dim, j = i % TILE;
+            for (int d = 0; d < dim; d++) tiles[tileBase + d * TILE + j] = train[i * dim + d];
+        }
+    }
+
+    public DescriptorMatcher(List<KeyPointX> train) {
+        this(packDescriptors(train), train.size(), train.isEmpty() ? 0 : train.get(0).descriptor.length);
+    }
+
+    /**
+     * 将KeyPointX列表中的描述子按行紧密存储到一个float数组中
+     *
+     * @param keyPointXes KeyPointX列表，所有描述子的长度必须相同
+     * @return 按行紧密存储的描述子矩阵
+     * @throws IllegalArgumentException 如果描述子的长度不同，或矩阵超过Integer.MAX_VALUE个元素，将抛出此异常。
+     */
+    public static float[] packDescriptors(List<KeyPointX> keyPointXes) {
+        int dim = keyPointXes.isEmpty() ? 0 : keyPointXes.get(0).descriptor.length;
+        float[] packed = new float[checkedLength(keyPointXes.size(), dim)];
+        for (int i = 0; i < keyPointXes.size(); i++) {
+            if (keyPointXes.get(i).descriptor.length != dim)
+                throw new IllegalArgumentException("All descriptors must have the same length " + dim + ".");
+            for (int d = 0; d < dim; d++) packed[i * dim + d] = keyPointXes.get(i).descriptor.get(d);
+        }
+        return packed;
+    }
+
+    /**
+     * k近邻匹配。对每个查询描述子，返回距离（欧氏距离）最近的k个训练描述子，按距离升序排列；训练描述子不足k个时，返回全部训练描述子。
+     *
+     * @param query  按行紧密存储的查询描述子
+     * @param nQuery 查询描述子的数量
+     * @param k      近邻数量
+     * @return 第i个元素为第i个查询描述子的k个最近邻
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public DMatch[][] knnMatch(float[] query, int nQuery, int k) throws InterruptedException, TimeoutException {
+        if (query.length < (long) nQuery * dim)
+            throw new IllegalArgumentException("Query matrix holds fewer than " + nQuery + " descriptors of dimension " + dim + ".");
+        if (k < 1) throw new IllegalArgumentException("k must be positive, got " + k + ".");
+        int kk = Math.min(k, nTrain);
+        DMatch[][] matches = new DMatch[nQuery][];
+        if (kk == 0) {
+            for (int q = 0; q < nQuery; q++) matches[q] = new DMatch[0];
+            return matches;
+        }
+        int nBlock = (nQuery + QUERY_BLOCK - 1) / QUERY_BLOCK;
+        SiftExecutor.parallelFor(0, nBlock, 1, (blockStart, blockEnd) -> {
+            float[] acc = new float[TILE];
+            float[] bestDists = new float[QUERY_BLOCK * kk];
+            int[] bestIds = new int[QUERY_BLOCK * kk];
+            for (int block = blockStart; block < blockEnd; block++) {
+                int qStart = block * QUERY_BLOCK, qEnd = Math.min(qStart + QUERY_BLOCK, nQuery);
+                searchBlock(query, qStart, qEnd, kk, acc, bestDists, bestIds);
+                for (int q = qStart; q < qEnd; q++) {
+                    int base = (q - qStart) * kk;
+                    matches[q] = new DMatch[kk];
+                    for (int r = 0; r < kk; r++)
+                        matches[q][r] = new DMatch(q, bestIds[base + r], (float) Math.sqrt(bestDists[base + r]));
+                }
+            }
+        });
+        return matches;
+    }
+
+    /**
+     * 使用Lowe比率测试进行匹配：只有当最近邻的距离小于次近邻距离的ratio倍时，才接受最近邻作为匹配。
+     *
+     * @param query  按行紧密存储的查询描述子
+     * @param nQuery 查询描述子的数量
+     * @param ratio  比率阈值，[Lowe 04]中使用0.8
+     * @return 通过比率测试的匹配，按查询描述子的顺序排列
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public ArrayList<DMatch> ratioMatch(float[] query, int nQuery, float ratio) throws InterruptedException, TimeoutException {
+        ArrayList<DMatch> matches = new ArrayList<>();
+        if (nTrain < 2) return matches;
+        for (DMatch[] knn : knnMatch(query, nQuery, 2)) {
+            if (knn[0].distance < ratio * knn[1].distance) matches.add(knn[0]);
+        }
+        return matches;
+    }
+
+    public ArrayList<DMatch> ratioMatch(List<KeyPointX> query, float ratio) throws InterruptedException, TimeoutException {
+        return ratioMatch(packDescriptors(query), query.size(), ratio);
+    }
+
+    /**
+     * 计算n个dim维描述子按行紧密存储所需的数组长度
+     *
+     * @param n   描述子的数量
+     * @param dim 描述子的维度
+     * @return 数组长度n * dim
+     * @throws IllegalArgumentException 如果n * dim超过Integer.MAX_VALUE，将抛出此异常。
+     */
+    private static int checkedLength(long n, int dim) {
+        long length = n * dim;
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(n + " descriptors of dimension " + dim + " exceed the maximum array length.");
+        return (int) length;
+    }
+
+    /**
+     * 为[qStart, qEnd)范围内的查询描述子遍历全部训练描述子，保留距离最近的kk个。
+     * 外层循环遍历训练描述子块，使同一块在这组查询描述子之间复用。
+     *
+     * @param bestDists 输出，第i个查询描述子的kk个最近邻的距离平方位于[(i - qStart) * kk, (i - qStart + 1) * kk)，升序排列
+     * @param bestIds   输出，与bestDists对应的训练描述子序号
+     */
+    private void searchBlock(float[] query, int qStart, int qEnd, int kk, float[] acc, float[] bestDists, int[] bestIds) {
+        Arrays.fill(bestDists, 0, (qEnd - qStart) * kk, Float.POSITIVE_INFINITY);
+        Arrays.fill(bestIds, 0, (qEnd - qStart) * kk, -1);
+        for (int tileStart = 0; tileStart < nTrain; tileStart += TILE) {
+            int tileBase = tileStart * dim, tileLen = Math.min(TILE, nTrain - tileStart);
+            for (int q = qStart; q < qEnd; q++) {
+                squaredDistances(query, q * dim, tileBase, acc);
+                int base = (q - qStart) * kk;
+                for (int j = 0; j < tileLen; j++) {
+                    if (acc[j] < bestDists[base + kk - 1]) insert(bestDists, bestIds, base, kk, acc[j], tileStart + j);
+                }
+            }
+        }
+    }
+
+    /**
+     * 计算一个查询描述子与一块训练描述子的距离平方。最内层循环没有跨迭代的依赖，可被自动向量化。
+     */
+    private void squaredDistances(float[] query, int queryOffset, int tileBase, float[] acc) {
+        Arrays.fill(acc, 0);
+        for (int d = 0; d < dim; d++) {
+            float q = query[queryOffset + d];
+            int row = tileBase + d * TILE;
+            for (int j = 0; j < TILE; j++) {
+                float diff = q - tiles[row + j];
+                acc[j] += diff * diff;
+            }
+        }
+    }
+
+    /**
+     * 将(dist, id)插入到升序排列的候选列表中，并舍弃最后一个候选
+     */
+    private static void insert(float[] bestDists, int[] bestIds, int base, int kk, float dist, int id) {
+        int pos = base + kk - 1;
+        while (pos > base && bestDists[pos - 1] > dist) {
+            bestDists[pos] = bestDists[pos - 1];
+            bestIds[pos] = bestIds[pos - 1];
+            pos--;
+        }
+        bestDists[pos] = dist;
+        bestIds[pos] = id;
+    }
+}
@@ -4,22 +4,49 @@ import flib.MathX;
 import org.opencv.core.*;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 import static org.opencv.imgproc.Imgproc.*;
 
 /**
  * 尺度空间极值检测（论文第3章）
+ * <p>
+ * octave序号（KeyPoint.octave）与SiftConfig.firstOctave无关：序号0对应放大2倍的输入图像，序号1对应输入图像，以此类推。
+ * 当firstOctave大于-1时，序号小于SiftConfig.baseOctaveNo()的octave不会被构建，octaves列表中对应的位置为null。
  */
 public class ExtremaDetector {
-    private static final int MIN_SIDE_LEN = 64; // 图像短边的最短长度
+    private static final int ROWS_PER_BLOCK = 16;   // 并行检测时每一块包含的行数
+
+    private final SiftConfig config;
+    private final PlanePool planePool; // 增量模式下尺度空间的图像平面从中取出
 
-    public Mat baseImage = null;
     public ArrayList<Octave> octaves = null;
+    public CandidateBuffer candidates = null;
     public ArrayList<KeyPoint> keyPoints = null;
+    public long pyramidNanos, detectionNanos; // 上一次运行中构建尺度空间和检测极值所用的时间（纳秒）
+
+    public ExtremaDetector() {
+        this(SiftConfig.DEFAULT);
+    }
+
+    public ExtremaDetector(SiftConfig config) {
+        this(config, PlanePool.NONE);
+    }
+
+    ExtremaDetector(SiftConfig config, PlanePool planePool) {
+        this.config = config;
+        this.planePool = planePool;
+    }
 
     /**
-     * 运行尺度空间极值检测
+     * 运行尺度空间极值检测。config.parallel和config.pipelinedPyramid均开启时，在构建尺度空间的同时检测极值点，见generateAndDetect()；
+     * 此时pyramidNanos为构建全部octave所用的时间，detectionNanos为此后等待剩余扫描完成的时间。
+     * 任一步骤失败时，先令尚未开始的扫描任务直接返回，并等待全部扫描任务结束，再将已构建的octave归还到缓冲区池。
+     * 基准图像不被保留：增量模式只使用其图像平面，构建完成后即归还；否则它成为第一个octave的栈底图像，随octave一并归还。
+     * 候选点同时保存在candidates中；只需将其交给KeyPointLocator时，应使用runCandidates()，以免为每个候选点创建KeyPoint。
      *
      * @param grayFloat float类型的灰度图像
      * @return 经过尺度空间极值检测寻找到的粗糙关键点
@@ -27,98 +54,404 @@ public class ExtremaDetector {
      * @throws TimeoutException     如果极值检测未能在规定时间（1小时）内完成，将抛出此异常
      */
     public ArrayList<KeyPoint> run(Mat grayFloat) throws InterruptedException, TimeoutException {
-        System.out.print("Detecting local extrema...");
-        baseImage = prepareBaseImage(grayFloat);
-        octaves = generateOctaves(baseImage);
-        keyPoints = detect(octaves);
-        System.out.println("DONE");
+        keyPoints = runCandidates(grayFloat).toKeyPoints(config);
         return keyPoints;
     }
 
     /**
-     * 计算基于image建立的尺度空间的octave数
+     * 运行尺度空间极值检测，与run()相同，但只返回候选点缓冲区，不将候选点转换为KeyPoint。keyPoints不会被更新。
+     *
+     * @param grayFloat float类型的灰度图像
+     * @return 经过尺度空间极值检测寻找到的候选点
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果极值检测未能在规定时间（1小时）内完成，将抛出此异常
+     */
+    public CandidateBuffer runCandidates(Mat grayFloat) throws InterruptedException, TimeoutException {
+        if (GlobalParam.verbose) System.out.print("Detecting local extrema...");
+        long startTime = System.nanoTime();
+        Mat baseImage = prepareBaseImage(grayFloat, config, planePool);
+        long pyramidEndTime;
+        if (config.parallel && config.pipelinedPyramid) {
+            ArrayList<Octave> builtOctaves = new ArrayList<>();
+            ArrayList<ForkJoinTask<CandidateBuffer>> scans = new ArrayList<>();
+            AtomicBoolean aborted = new AtomicBoolean();
+            boolean completed = false;
+            try {
+                generateAndDetect(baseImage, builtOctaves, scans, aborted);
+                if (config.incrementalPyramid) planePool.recycle(baseImage); // 增量模式只使用图像平面
+                pyramidEndTime = System.nanoTime();
+                candidates = new CandidateBuffer();
+                for (ForkJoinTask<CandidateBuffer> scan : scans) candidates.addAll(SiftExecutor.await(scan));
+                completed = true;
+            } finally {
+                if (!completed) {
+                    aborted.set(true);
+                    for (ForkJoinTask<CandidateBuffer> scan : scans) scan.quietlyJoin(); // 扫描任务读取octave的DoG图像平面
+                    for (Octave octave : builtOctaves) {
+                        if (octave != null) octave.close();
+                    }
+                }
+            }
+            octaves = builtOctaves;
+        } else {
+            octaves = generateOctaves(baseImage, config, planePool);
+            if (config.incrementalPyramid) planePool.recycle(baseImage);
+            pyramidEndTime = System.nanoTime();
+            candidates = detect(octaves, config);
+        }
+        detectionNanos = System.nanoTime() - pyramidEndTime;
+        pyramidNanos = pyramidEndTime - startTime;
+        if (GlobalParam.verbose) System.out.println("DONE");
+        return candidates;
+    }
+
+    /**
+     * 计算基于image建立的尺度空间的octave数（使用默认配置）
      *
      * @param image 图像
      * @return 基于image建立的尺度空间的octave数
      */
     public static int computeNumOfOctaves(Mat image) {
-        // floor(k)+1, k=log2(w/MIN_SIDE_LEN)
+        return computeNumOfOctaves(image, SiftConfig.DEFAULT);
+    }
+
+    /**
+     * 计算基于image建立的尺度空间的octave数
+     *
+     * @param image  图像
+     * @param config 配置
+     * @return 基于image建立的尺度空间的octave数
+     */
+    public static int computeNumOfOctaves(Mat image, SiftConfig config) {
+        // floor(k)+1, k=log2(w/minSideLen)
         // Size对象只记录前2维的尺寸，故不必对多通道图像做安全检查
-        return (int) Math.floor(MathX.log2(Util.min(image.size()) * 1.0f / MIN_SIDE_LEN)) + 1;
+        return (int) Math.floor(MathX.log2(Util.min(image.size()) * 1.0f / config.minSideLen)) + 1;
     }
 
     /**
-     * 将输入图像放大到2倍并进行高斯滤波，作为基准图像
+     * 按config.firstOctave缩放输入图像（-1：放大到2倍；0：保持原尺寸；1：缩小一半）并进行高斯滤波，作为基准图像
      *
      * @param grayFloat 原始的灰度图像
-     * @return 放大并经过滤波的图像
+     * @param config    配置
+     * @param pool      缓冲区池，基准图像从中取出
+     * @return 缩放并经过滤波的图像
      */
-    private static Mat prepareBaseImage(Mat grayFloat) {
-        Mat baseImage = new Mat();
-        resize(grayFloat, baseImage, new Size(), 2, 2, INTER_CUBIC);
-        GaussianBlur(baseImage, baseImage, new Size(), GlobalParam.SIGMA);
+    static Mat prepareBaseImage(Mat grayFloat, SiftConfig config, PlanePool pool) {
+        Mat baseImage;
+        switch (config.baseOctaveNo()) {
+            case 0:
+                baseImage = pool.acquireMat(2 * grayFloat.width(), 2 * grayFloat.height());
+                resize(grayFloat, baseImage, new Size(), 2, 2, INTER_CUBIC);
+                GaussianBlur(baseImage, baseImage, new Size(), config.sigma);
+                break;
+            case 1:
+                baseImage = pool.acquireMat(grayFloat.width(), grayFloat.height());
+                GaussianBlur(grayFloat, baseImage, new Size(), config.sigma);
+                break;
+            default:
+                baseImage = pool.acquireMat(FloatImage.halfSize(grayFloat.width()), FloatImage.halfSize(grayFloat.height()));
+                resize(grayFloat, baseImage, new Size(), 0.5, 0.5, INTER_AREA);
+                GaussianBlur(baseImage, baseImage, new Size(), config.sigma);
+        }
         return baseImage;
     }
 
     /**
-     * 生成octaves
+     * 生成octaves。config.incrementalPyramid开启时以增量方式构建，否则对每张高斯图像从栈底图像开始滤波。
+     * 列表的下标为octave序号，序号小于config.baseOctaveNo()的位置为null。
      *
      * @param baseImage 基础图像
+     * @param config    配置
+     * @param pool      缓冲区池，尺度空间的图像从中取出
      * @return octaves
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
      */
-    private static ArrayList<Octave> generateOctaves(Mat baseImage) {
+    private static ArrayList<Octave> generateOctaves(Mat baseImage, SiftConfig config, PlanePool pool) throws InterruptedException, TimeoutException {
         ArrayList<Octave> octaves = new ArrayList<>();
-        while (Util.min(baseImage.size()) >= MIN_SIDE_LEN) {
-            Octave octave = new Octave(baseImage, GlobalParam.SIGMA, GlobalParam.S);
+        for (int i = 0; i < config.baseOctaveNo(); i++) octaves.add(null);
+        GaussianImage bottomImage = baseGaussianImage(baseImage, config, pool);
+        while (isLargeEnough(bottomImage, config)) {
+            Octave octave = buildOctave(bottomImage, config, pool);
             octaves.add(octave);
-            // 取栈中倒数第3张图像作为下一个octave的栈底图像，这张图像的scale恰为2*SIGMA
-            baseImage = octave.gaussianImages.get(octave.gaussianImages.size() - 3).image;
-            resize(baseImage, baseImage, new Size(), 0.5, 0.5);
+            bottomImage = nextBottomImage(octave, config, pool);
         }
+        pool.recycle(bottomImage);
         return octaves;
     }
 
     /**
-     * 极值点检测。如果一个点的响应不大于或不小于周围26个点，那么该点将被认为是极值点。
+     * 流水线式地构建octaves并检测极值点。构建线程每完成一张DoG图像，只要以它为上层的三张相邻DoG图像都已就绪，
+     * 就把中间一层按行块切分，作为独立的扫描任务提交到SiftExecutor的线程池，随后继续构建下一张图像。
+     * 因此扫描与同一octave中后续图像的滤波、以及下一个octave的构建同时进行。
+     * 扫描任务按octave、DoG图像、行块的顺序加入scans，与detect(octaves, config)的合并顺序相同，按此顺序合并即得到相同的结果。
+     * 已构建的octave及已提交的扫描任务在方法失败时仍保留在octaves和scans中，由调用者等待扫描任务结束后归还。
+     *
+     * @param baseImage 基础图像
+     * @param octaves   用于存放已构建的octave，必须为空
+     * @param scans     用于存放已提交的扫描任务
+     * @param aborted   置位后，尚未开始的扫描任务不再扫描，直接返回空的结果
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    private void generateAndDetect(Mat baseImage, ArrayList<Octave> octaves, ArrayList<ForkJoinTask<CandidateBuffer>> scans,
+                                   AtomicBoolean aborted) throws InterruptedException, TimeoutException {
+        for (int i = 0; i < config.baseOctaveNo(); i++) octaves.add(null);
+        float threshold = config.prefilterThreshold;
+        GaussianImage bottomImage = baseGaussianImage(baseImage, config, planePool);
+        while (isLargeEnough(bottomImage, config)) {
+            int octaveNo = octaves.size();
+            ArrayList<FloatImage> dogPlanes = new ArrayList<>(); // 仅由构建线程访问
+            Octave octave = buildOctave(bottomImage, config, planePool, dog -> {
+                dogPlanes.add(dog);
+                int layer = dogPlanes.size() - 2;
+                if (layer < 1) return;
+                FloatImage prev = dogPlanes.get(layer - 1), curr = dogPlanes.get(layer), next = dogPlanes.get(layer + 1);
+                for (int block = 0, nBlock = numOfBlocks(curr); block < nBlock; block++) {
+                    int finalBlock = block; // 用于Lambda的临时final变量
+                    scans.add(SiftExecutor.submit(() -> aborted.get() ? new CandidateBuffer()
+                            : scanBlock(prev, curr, next, finalBlock, threshold, octaveNo, layer)));
+                }
+            });
+            octaves.add(octave);
+            bottomImage = nextBottomImage(octave, config, planePool);
+        }
+        planePool.recycle(bottomImage);
+    }
+
+    /**
+     * 以基准图像创建第一个octave的栈底图像，其图像平面从pool中取出。增量模式只使用图像平面，不保留baseImage的引用，调用者应自行归还baseImage；
+     * 否则同时保留baseImage，baseImage此后由栈底图像持有。
+     *
+     * @param baseImage 基准图像
+     * @param config    配置
+     * @param pool      缓冲区池
+     * @return 第一个octave的栈底图像
+     */
+    static GaussianImage baseGaussianImage(Mat baseImage, SiftConfig config, PlanePool pool) {
+        if (config.incrementalPyramid) return new GaussianImage(pool.fromMat(baseImage), config.sigma);
+        return new GaussianImage(baseImage, pool.fromMat(baseImage), config.sigma);
+    }
+
+    /**
+     * 判断图像是否足够大，可以作为一个octave的栈底图像
+     *
+     * @param bottomImage 候选的栈底图像
+     * @param config      配置
+     * @return 图像短边不短于config.minSideLen时，返回true
+     */
+    static boolean isLargeEnough(GaussianImage bottomImage, SiftConfig config) {
+        return Math.min(bottomImage.plane.width, bottomImage.plane.height) >= config.minSideLen;
+    }
+
+    /**
+     * 构建栈底图像为bottomImage的octave。config.incrementalPyramid开启时以增量方式构建，否则对每张高斯图像从栈底图像开始滤波。
+     *
+     * @param bottomImage 栈底图像，标准差为config.sigma
+     * @param config      配置
+     * @param pool        缓冲区池，octave的图像从中取出
+     * @return octave
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    static Octave buildOctave(GaussianImage bottomImage, SiftConfig config, PlanePool pool) throws InterruptedException, TimeoutException {
+        return buildOctave(bottomImage, config, pool, dog -> {
+        });
+    }
+
+    /**
+     * 构建栈底图像为bottomImage的octave，每计算完一张DoG图像即在构建线程中以其图像平面调用onDogReady。
+     *
+     * @param bottomImage 栈底图像，标准差为config.sigma
+     * @param config      配置
+     * @param pool        缓冲区池，octave的图像从中取出
+     * @param onDogReady  接收每张新的DoG图像平面
+     * @return octave
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    static Octave buildOctave(GaussianImage bottomImage, SiftConfig config, PlanePool pool, Consumer<FloatImage> onDogReady) throws InterruptedException, TimeoutException {
+        if (config.incrementalPyramid) return Octave.buildIncremental(bottomImage.plane, config, pool, onDogReady);
+        if (bottomImage.image == null) bottomImage = new GaussianImage(bottomImage.plane.toMat(), bottomImage.plane, config.sigma);
+        return Octave.build(bottomImage, config, pool, onDogReady);
+    }
+
+    /**
+     * 取栈中倒数第3张图像降采样，作为下一个octave的栈底图像；这张图像的scale恰为2*SIGMA。
+     * 降采样结果写入新的图像，以免覆盖octave中仍在使用的高斯图像。
+     *
+     * @param octave 当前octave
+     * @param config 配置
+     * @param pool   缓冲区池，降采样结果写入从中取出的图像
+     * @return 下一个octave的栈底图像
+     */
+    static GaussianImage nextBottomImage(Octave octave, SiftConfig config, PlanePool pool) {
+        GaussianImage top = octave.gaussianImages.get(octave.gaussianImages.size() - 3);
+        if (top.image == null) {
+            FloatImage half = pool.acquire(FloatImage.halfSize(top.plane.width), FloatImage.halfSize(top.plane.height));
+            top.plane.downsample(half);
+            return new GaussianImage(half, config.sigma);
+        }
+        Mat nextBottomImage = pool.acquireMat(FloatImage.halfSize(top.image.width()), FloatImage.halfSize(top.image.height()));
+        resize(top.image, nextBottomImage, new Size(), 0.5, 0.5);
+        return new GaussianImage(nextBottomImage, pool.fromMat(nextBottomImage), config.sigma);
+    }
+
+    /**
+     * 在所有octave中检测极值点，结果按octave的顺序合并。未被构建的octave（null）将被跳过。
      *
      * @param octaves octaves
+     * @param config  配置
      * @return 检测到的极值点
      * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
      * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
      */
-    private static ArrayList<KeyPoint> detect(ArrayList<Octave> octaves) throws InterruptedException, TimeoutException {
-        ArrayList<KeyPoint> keyPoints = new ArrayList<>();
+    private static CandidateBuffer detect(ArrayList<Octave> octaves, SiftConfig config) throws InterruptedException, TimeoutException {
+        CandidateBuffer candidates = new CandidateBuffer();
         for (int octaveNo = 0; octaveNo < octaves.size(); octaveNo++) {
-            Octave octave = octaves.get(octaveNo);
-            ArrayList<Mat> dogImages = octave.dogImages;
-            for (int i = 1; i <= dogImages.size() - 2; i++) {
-                Mat prev = dogImages.get(i - 1), curr = dogImages.get(i), next = dogImages.get(i + 1);
-                final int finalOctaveNo = octaveNo, finalI = i; // 用于Lambda的临时final变量
-                Util.foreachPixelParallelDo(curr.width(), curr.height(), 1, 1, (x, y) -> {
-                    double val = curr.get(y, x)[0];
-                    boolean minFlag = true, maxFlag = true;
-                    // 检查中心点是否为极值点
-                    for (int a = -1; a <= 1; a++) {
-                        for (int b = -1; b <= 1; b++) {
-                            if (prev.get(y + a, x + b)[0] < val ||
-                                    curr.get(y + a, x + b)[0] < val ||
-                                    next.get(y + a, x + b)[0] < val) minFlag = false;
-                            if (prev.get(y + a, x + b)[0] > val ||
-                                    curr.get(y + a, x + b)[0] > val ||
-                                    next.get(y + a, x + b)[0] > val) maxFlag = false;
-                        }
-                    }
+            if (octaves.get(octaveNo) != null) candidates.addAll(detect(octaves.get(octaveNo), octaveNo, config));
+        }
+        return candidates;
+    }
 
-                    if (minFlag || maxFlag) {
-                        double scale = GlobalParam.SIGMA * Math.pow(2, finalI * 1.0 / GlobalParam.S) * Math.pow(2, finalOctaveNo); // σ × 2^(i/s) × 2^octave
-                        KeyPoint keyPoint = new KeyPoint(x, y, (float) scale, -1, 0, finalOctaveNo);
-                        synchronized (keyPoints) {
-                            keyPoints.add(keyPoint);
-                        }
-                    }
-                });
-            }
+    /**
+     * 极值点检测。如果一个点的响应不大于或不小于周围26个点，那么该点将被认为是极值点。
+     * 与[Lowe 04]及OpenCV相同，|D|不大于config.prefilterThreshold的像素在比较邻域之前即被排除：
+     * 这一阈值只有弱对比剔除阈值的1 / (2s)，插值对响应的修正远小于两者之差，因此被排除的点在弱对比剔除中也不会保留。
+     * 每张DoG图像按固定的行数切分为若干块，每一块并行检测并写入独立的缓冲区，最后按块的顺序合并。
+     * 由于分块方式与核心数无关，检测结果的顺序在多次运行之间以及不同的机器之间都是一致的。
+     *
+     * @param octave   octave
+     * @param octaveNo octave的序号
+     * @param config   配置
+     * @return 在octave中检测到的极值点
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    static CandidateBuffer detect(Octave octave, int octaveNo, SiftConfig config) throws InterruptedException, TimeoutException {
+        CandidateBuffer candidates = new CandidateBuffer();
+        ArrayList<FloatImage> dogPlanes = octave.dogPlanes;
+        float threshold = config.prefilterThreshold;
+        for (int i = 1; i <= dogPlanes.size() - 2; i++) {
+            FloatImage prev = dogPlanes.get(i - 1), curr = dogPlanes.get(i), next = dogPlanes.get(i + 1);
+            final int finalI = i; // 用于Lambda的临时final变量
+            CandidateBuffer[] blockCandidates = new CandidateBuffer[numOfBlocks(curr)];
+            SiftExecutor.parallelFor(0, blockCandidates.length, 1, (blockStart, blockEnd) -> {
+                for (int block = blockStart; block < blockEnd; block++)
+                    blockCandidates[block] = scanBlock(prev, curr, next, block, threshold, octaveNo, finalI);
+            });
+            for (CandidateBuffer buffer : blockCandidates) candidates.addAll(buffer);
         }
-        return keyPoints;
+        return candidates;
+    }
+
+    /**
+     * 计算一张DoG图像被切分成的行块数。首尾两行不参与检测。
+     *
+     * @param dog DoG图像
+     * @return 行块数
+     */
+    private static int numOfBlocks(FloatImage dog) {
+        return Math.max((dog.height - 2 + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK, 0);
+    }
+
+    /**
+     * 在一个行块中检测极值点
+     *
+     * @param prev      上一张DoG图像
+     * @param curr      中心点所在的DoG图像
+     * @param next      下一张DoG图像
+     * @param block     行块的序号
+     * @param threshold 预筛选阈值
+     * @param octaveNo  octave的序号
+     * @param layer     curr在octave中的序号
+     * @return 在行块中检测到的极值点
+     */
+    private static CandidateBuffer scanBlock(FloatImage prev, FloatImage curr, FloatImage next, int block, float threshold, int octaveNo, int layer) {
+        CandidateBuffer buffer = new CandidateBuffer();
+        int yStart = 1 + block * ROWS_PER_BLOCK, yEnd = Math.min(yStart + ROWS_PER_BLOCK, curr.height - 1);
+        for (int y = yStart; y < yEnd; y++)
+            scanRow(prev.data, curr.data, next.data, curr.stride, y, curr.width, threshold, octaveNo, layer, buffer);
+        return buffer;
+    }
+
+    /**
+     * 扫描一行像素。三张DoG图像尺寸相同，共用下标；每张图像中参与比较的三行（y - 1, y, y + 1）由行首下标加减stride得到。
+     * 内层循环只有一次绝对值比较，绝大多数像素在这里即被排除；通过预筛选的像素先与同层左侧的点比较，确定只可能是极大值还是极小值，
+     * 再逐一与其余邻域比较，遇到不满足的邻域即提前返回。
+     *
+     * @param prev      上一张DoG图像的像素
+     * @param curr      中心点所在的DoG图像的像素
+     * @param next      下一张DoG图像的像素
+     * @param stride    相邻两行首像素的间隔
+     * @param y         行号
+     * @param width     图像宽度
+     * @param threshold 预筛选阈值
+     * @param octaveNo  octave的序号
+     * @param layer     DoG图像在octave中的序号
+     * @param buffer    用于写入检测到的极值点
+     */
+    private static void scanRow(float[] prev, float[] curr, float[] next, int stride, int y, int width, float threshold,
+                                int octaveNo, int layer, CandidateBuffer buffer) {
+        int rowStart = y * stride;
+        for (int x = 1; x < width - 1; x++) {
+            int idx = rowStart + x;
+            float val = curr[idx];
+            if (!(Math.abs(val) > threshold)) continue;
+            float left = curr[idx - 1];
+            boolean extremum;
+            if (left < val) extremum = isMaximum(prev, curr, next, idx, stride, val);
+            else if (left > val) extremum = isMinimum(prev, curr, next, idx, stride, val);
+            else extremum = isMaximum(prev, curr, next, idx, stride, val) || isMinimum(prev, curr, next, idx, stride, val);
+            if (extremum) buffer.add(x, y, octaveNo, layer);
+        }
+    }
+
+    /**
+     * 检查中心点是否不小于周围26个点。先比较同层的8个点，再比较上下两层，任一邻域更大时立即返回。
+     *
+     * @param prev   上一张DoG图像的像素
+     * @param curr   中心点所在的DoG图像的像素
+     * @param next   下一张DoG图像的像素
+     * @param idx    中心点的下标
+     * @param stride 相邻两行首像素的间隔
+     * @param val    中心点的响应
+     * @return 中心点的响应不小于周围26个点时，返回true
+     */
+    private static boolean isMaximum(float[] prev, float[] curr, float[] next, int idx, int stride, float val) {
+        int up = idx - stride, down = idx + stride;
+        return val >= curr[idx - 1] && val >= curr[idx + 1]
+                && val >= curr[up - 1] && val >= curr[up] && val >= curr[up + 1]
+                && val >= curr[down - 1] && val >= curr[down] && val >= curr[down + 1]
+                && val >= prev[up - 1] && val >= prev[up] && val >= prev[up + 1]
+                && val >= prev[idx - 1] && val >= prev[idx] && val >= prev[idx + 1]
+                && val >= prev[down - 1] && val >= prev[down] && val >= prev[down + 1]
+                && val >= next[up - 1] && val >= next[up] && val >= next[up + 1]
+                && val >= next[idx - 1] && val >= next[idx] && val >= next[idx + 1]
+                && val >= next[down - 1] && val >= next[down] && val >= next[down + 1];
+    }
+
+    /**
+     * 检查中心点是否不大于周围26个点。比较顺序与isMaximum()相同。
+     *
+     * @param prev   上一张DoG图像的像素
+     * @param curr   中心点所在的DoG图像的像素
+     * @param next   下一张DoG图像的像素
+     * @param idx    中心点的下标
+     * @param stride 相邻两行首像素的间隔
+     * @param val    中心点的响应
+     * @return 中心点的响应不大于周围26个点时，返回true
+     */
+    private static boolean isMinimum(float[] prev, float[] curr, float[] next, int idx, int stride, float val) {
+        int up = idx - stride, down = idx + stride;
+        return val <= curr[idx - 1] && val <= curr[idx + 1]
+                && val <= curr[up - 1] && val <= curr[up] && val <= curr[up + 1]
+                && val <= curr[down - 1] && val <= curr[down] && val <= curr[down + 1]
+                && val <= prev[up - 1] && val <= prev[up] && val <= prev[up + 1]
+                && val <= prev[idx - 1] && val <= prev[idx] && val <= prev[idx + 1]
+                && val <= prev[down - 1] && val <= prev[down] && val <= prev[down + 1]
+                && val <= next[up - 1] && val <= next[up] && val <= next[up + 1]
+                && val <= next[idx - 1] && val <= next[idx] && val <= next[idx + 1]
+                && val <= next[down - 1] && val <= next[down] && val <= next[down + 1];
     }
 }
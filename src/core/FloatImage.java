@@ -0,0 +1,123 @@
+package core;
+
+import org.opencv.core.Mat;
+
+import static org.opencv.core.CvType.*;
+
+/**
+ * 单通道float图像平面，像素连续存储在一维数组中。像素(x, y)位于data[y * stride + x]。
+ * 流水线中的热点循环通过此类直接访问像素，以避免Mat.get()的JNI调用及每次读取时的数组分配。
+ */
+public class FloatImage {
+    public final float[] data;
+    public final int width, height;
+    public final int stride; // 相邻两行首像素在data中的间隔
+
+    public FloatImage(int width, int height) {
+        this(new float[width * height], width, height, width);
+    }
+
+    public FloatImage(float[] data, int width, int height, int stride) {
+        if (stride < width || data.length < stride * (height - 1) + width)
+            throw new IllegalArgumentException("Data array is too small for a " + width + "x" + height + " image with stride " + stride + ".");
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+    }
+
+    /**
+     * 从单通道float类型的Mat中一次性复制全部像素，构建图像平面。
+     *
+     * @param mat 单通道float类型的图像
+     * @return 与mat内容相同的图像平面
+     * @throws IllegalArgumentException 如果mat不是单通道float类型的图像，将抛出此异常。
+     */
+    public static FloatImage fromMat(Mat mat) {
+        if (mat.type() != CV_32F)
+            throw new IllegalArgumentException("mat must be a single-channel floating-point image.");
+        FloatImage image = new FloatImage(mat.width(), mat.height());
+        mat.get(0, 0, image.data);
+        return image;
+    }
+
+    /**
+     * 将图像平面复制为单通道float类型的Mat。
+     *
+     * @return 与此图像平面内容相同的Mat
+     */
+    public Mat toMat() {
+        Mat mat = new Mat(height, width, CV_32F);
+        if (stride == width) {
+            mat.put(0, 0, data);
+        } else {
+            float[] row = new float[width];
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(data, y * stride, row, 0, width);
+                mat.put(y, 0, row);
+            }
+        }
+        return mat;
+    }
+
+    /**
+     * 计算以0.5倍缩放时OpenCV的resize()输出的边长，即len * 0.5四舍六入五成双的结果
+     *
+     * @param len 原边长
+     * @return 缩放后的边长
+     */
+    static int halfSize(int len) {
+        return (int) Math.rint(len * 0.5);
+    }
+
+    /**
+     * 将图像缩小为原来的一半，输出尺寸与OpenCV中以0.5倍缩放的结果相同（见halfSize()，奇数边长可能向上取整）。
+     * 每个输出像素为对应2x2区域的平均值，超出图像的最后一行或一列以边界像素代替；这正是以0.5倍进行双线性缩放的采样位置。
+     *
+     * @return 缩小后的图像平面
+     */
+    public FloatImage downsample() {
+        FloatImage half = new FloatImage(halfSize(width), halfSize(height));
+        downsample(half);
+        return half;
+    }
+
+    /**
+     * 将图像缩小为原来的一半，写入已分配好的图像平面half，其余同downsample()。
+     *
+     * @param half 输出图像平面，宽和高必须为halfSize(此图像的宽和高)
+     * @throws IllegalArgumentException 如果half的尺寸不正确，将抛出此异常。
+     */
+    public void downsample(FloatImage half) {
+        int halfWidth = halfSize(width), halfHeight = halfSize(height);
+        if (half.width != halfWidth || half.height != halfHeight)
+            throw new IllegalArgumentException("Output image must be " + halfWidth + "x" + halfHeight + ", got " + half.width + "x" + half.height + ".");
+        int nFullColumn = Math.min(width / 2, half.width); // 两列都在图像内的输出列数
+        for (int y = 0; y < half.height; y++) {
+            int row0 = 2 * y * stride, row1 = 2 * y + 1 < height ? row0 + stride : row0, halfRow = y * half.stride;
+            for (int x = 0; x < nFullColumn; x++)
+                half.data[halfRow + x] = 0.25f * (data[row0 + 2 * x] + data[row0 + 2 * x + 1] + data[row1 + 2 * x] + data[row1 + 2 * x + 1]);
+            for (int x = nFullColumn; x < half.width; x++)
+                half.data[halfRow + x] = 0.5f * (data[row0 + 2 * x] + data[row1 + 2 * x]);
+        }
+    }
+
+    public float get(int x, int y) {
+        return data[y * stride + x];
+    }
+
+    public void set(int x, int y, float val) {
+        data[y * stride + x] = val;
+    }
+
+    /**
+     * 返回像素(x, y)在data中的下标
+     *
+     * @param x 横坐标（列指标）
+     * @param y 纵坐标（行指标）
+     * @return 像素(x, y)在data中的下标
+     */
+    public int index(int x, int y) {
+        return y * stride + x;
+    }
+}
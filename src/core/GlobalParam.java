@@ -1,13 +1,22 @@
 package core;
 
 /**
- * 全局参数
+ * 全局参数。SIFT的算法参数已由SiftConfig代替，此处保留的常量为默认配置中的取值。
  */
 public class GlobalParam {
-    public static final float SIGMA = 1.6f;                        // octave中栈底图像的sigma
-    public static final int S = 3;                                 // octave中高斯图像的interval数量
-    public static final float K = (float) Math.pow(2, 1.0 / S);    // 相邻高斯图像sigma的比例
-    public static final float MAX_LOCAL_SCALE = 2 * SIGMA * K * K; // octave内高斯图像的最大尺度
+    @Deprecated
+    public static final float SIGMA = 1.6f;                        // octave中栈底图像的sigma，已由SiftConfig.sigma代替
+    @Deprecated
+    public static final int S = 3;                                 // octave中高斯图像的interval数量，已由SiftConfig.s代替
+    @Deprecated
+    public static final float K = (float) Math.pow(2, 1.0 / S);    // 相邻高斯图像sigma的比例，已由SiftConfig.k代替
+    @Deprecated
+    public static final float MAX_LOCAL_SCALE = 2 * SIGMA * K * K; // octave内高斯图像的最大尺度，已由SiftConfig.maxLocalScale代替
 
-    public static final boolean enableParallelDescriptorComputation = false;   // 是否启用并行描述子计算
+    public static volatile boolean verbose = true;                 // 是否在控制台打印各阶段的进度；批量处理时可关闭以节省时间
+
+    @Deprecated
+    public static final boolean enableParallelKeyPointProcessing = false;    // 是否并行地进行关键点定位、朝向计算和描述子计算，已由SiftConfig.parallel代替
+    @Deprecated
+    public static final boolean enableParallelDescriptorComputation = enableParallelKeyPointProcessing; // 是否启用并行描述子计算，已由SiftConfig.parallel代替
 }
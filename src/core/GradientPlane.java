@@ -0,0 +1,174 @@
+package core;
+
+import org.opencv.core.KeyPoint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 一张高斯图像的梯度幅值和朝向平面，与高斯图像平面使用相同的下标。
+ * 幅值为sqrt(dx^2 + dy^2)，其中dx = (f(x + 1) - f(x - 1)) / 2，dy同理；朝向为atan2(dy, dx) + π，范围为[0, 2π]。
+ * 图像最外围一圈像素没有完整的邻域，不参与计算，其值为0；朝向计算和描述子生成都不会采样这些像素。
+ * <p>
+ * 开启config.gradientCache时，朝向计算和描述子生成在开始前调用prepare()，只为有关键点落在其上的高斯图像构建梯度平面，
+ * 并将其缓存在高斯图像中。两个阶段读取同一份缓存，因此每个像素的sqrt和atan2只计算一次，
+ * 不再随关键点邻域的重叠和多朝向关键点的复制而重复计算。缓存的梯度平面从octave的缓冲区池中取出，随octave的close()一并归还。
+ */
+public class GradientPlane {
+    public final float[] magnitude;
+    public final float[] angle;
+    public final int width, height;
+    public final int stride; // 与对应的高斯图像平面相同
+    final FloatImage magnitudePlane, anglePlane; // 存放magnitude和angle的图像平面，用于归还到缓冲区池
+
+    private GradientPlane(FloatImage magnitudePlane, FloatImage anglePlane, int width, int height, int stride) {
+        this.magnitude = magnitudePlane.data;
+        this.angle = anglePlane.data;
+        this.magnitudePlane = magnitudePlane;
+        this.anglePlane = anglePlane;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+    }
+
+    /**
+     * 为图像平面分配梯度平面，缓冲区从pool中取出；内容未定义，需由fill()填充。
+     *
+     * @param plane 高斯图像平面
+     * @param pool  缓冲区池
+     * @return 尚未填充的梯度平面
+     */
+    private static GradientPlane allocate(FloatImage plane, PlanePool pool) {
+        // 缓冲区与高斯图像平面使用相同的stride；池中的缓冲区总是紧密存储的，因此stride不等于宽度时按stride × height分配
+        FloatImage magnitudePlane = pool.acquire(plane.stride, plane.height);
+        FloatImage anglePlane = pool.acquire(plane.stride, plane.height);
+        return new GradientPlane(magnitudePlane, anglePlane, plane.width, plane.height, plane.stride);
+    }
+
+    /**
+     * 计算图像平面的梯度幅值和朝向，各行并行计算。
+     *
+     * @param plane 高斯图像平面
+     * @return 梯度平面
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public static GradientPlane compute(FloatImage plane) throws InterruptedException, TimeoutException {
+        GradientPlane gradient = allocate(plane, PlanePool.NONE);
+        gradient.clearBorder();
+        SiftExecutor.parallelFor(1, plane.height - 1, (yStart, yEnd) -> gradient.computeRows(plane, yStart, yEnd));
+        return gradient;
+    }
+
+    /**
+     * 将最外围一圈像素置为0。池中取出的缓冲区内容未定义，而computeRows()不计算这些像素。
+     */
+    private void clearBorder() {
+        for (int y = 0; y < height; y += Math.max(height - 1, 1)) {
+            for (int idx = y * stride, rowEnd = idx + width; idx < rowEnd; idx++) {
+                magnitude[idx] = 0;
+                angle[idx] = 0;
+            }
+        }
+        for (int y = 1; y < height - 1; y++) {
+            magnitude[y * stride] = angle[y * stride] = 0;
+            magnitude[y * stride + width - 1] = angle[y * stride + width - 1] = 0;
+        }
+    }
+
+    /**
+     * 由图像平面计算第yStart至yEnd - 1行（不含最左和最右一列）的梯度幅值和朝向
+     *
+     * @param plane  高斯图像平面，尺寸与此梯度平面相同
+     * @param yStart 起始行，不小于1
+     * @param yEnd   结束行（不含），不大于height - 1
+     */
+    private void computeRows(FloatImage plane, int yStart, int yEnd) {
+        float[] data = plane.data;
+        for (int y = yStart; y < yEnd; y++) {
+            for (int idx = y * stride + 1, rowEnd = y * stride + width - 1; idx < rowEnd; idx++) {
+                float dx = (data[idx + 1] - data[idx - 1]) / 2;
+                float dy = (data[idx + stride] - data[idx - stride]) / 2;
+                magnitude[idx] = (float) Math.sqrt(dx * dx + dy * dy);
+                angle[idx] = (float) (Math.atan2(dy, dx) + Math.PI);
+            }
+        }
+    }
+
+    /**
+     * 为关键点所在的高斯图像构建梯度平面并缓存。已经缓存的高斯图像不会重复计算。
+     * 梯度平面的缓冲区先在当前线程中从octave的缓冲区池取出；config.parallel开启时每张高斯图像作为独立的任务并行计算，否则在当前线程中逐张计算。
+     * 计算失败时，等待已提交的任务结束后将全部缓冲区归还到池中，高斯图像不缓存梯度平面。
+     *
+     * @param keyPoints 关键点
+     * @param octaves   octaves
+     * @param config    配置
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    static void prepare(ArrayList<KeyPoint> keyPoints, ArrayList<Octave> octaves, SiftConfig config) throws InterruptedException, TimeoutException {
+        ArrayList<GaussianImage> pending = new ArrayList<>();
+        ArrayList<GradientPlane> gradients = new ArrayList<>();
+        ArrayList<PlanePool> pools = new ArrayList<>(); // 与gradients一一对应，为取出缓冲区的池
+        Set<GaussianImage> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (KeyPoint keyPoint : keyPoints) {
+            Octave octave = octaves.get(keyPoint.octave);
+            GaussianImage gaussianImage = octave.gaussianImages.get(Util.getLocalGaussianImageId(keyPoint, config));
+            if (gaussianImage.gradient == null && seen.add(gaussianImage)) {
+                pending.add(gaussianImage);
+                gradients.add(allocate(gaussianImage.plane, octave.pool));
+                pools.add(octave.pool);
+            }
+        }
+        ArrayList<ForkJoinTask<Object>> tasks = new ArrayList<>();
+        boolean completed = false;
+        try {
+            for (int i = 0; i < pending.size(); i++) {
+                GradientPlane gradient = gradients.get(i);
+                FloatImage plane = pending.get(i).plane;
+                if (config.parallel) {
+                    tasks.add(SiftExecutor.submit(() -> {
+                        gradient.fill(plane);
+                        return null;
+                    }));
+                } else {
+                    gradient.fill(plane);
+                }
+            }
+            for (ForkJoinTask<Object> task : tasks) SiftExecutor.await(task);
+            completed = true;
+        } finally {
+            if (!completed) {
+                for (ForkJoinTask<Object> task : tasks) task.quietlyJoin(); // 任务结束后才能归还它们写入的缓冲区
+                for (int i = 0; i < gradients.size(); i++) {
+                    pools.get(i).recycle(gradients.get(i).magnitudePlane);
+                    pools.get(i).recycle(gradients.get(i).anglePlane);
+                }
+            }
+        }
+        for (int i = 0; i < pending.size(); i++) pending.get(i).gradient = gradients.get(i);
+    }
+
+    /**
+     * 在当前线程中计算全部梯度幅值和朝向，包括将最外围一圈像素置为0
+     *
+     * @param plane 高斯图像平面，尺寸与此梯度平面相同
+     */
+    private void fill(FloatImage plane) {
+        clearBorder();
+        computeRows(plane, 1, height - 1);
+    }
+
+    /**
+     * 计算梯度平面占用的字节数
+     *
+     * @return 梯度平面占用的字节数
+     */
+    public long byteCount() {
+        return (long) Float.BYTES * (magnitude.length + angle.length);
+    }
+}
@@ -1,168 +1,228 @@
 package core;
 
-import org.jblas.*;
-import org.opencv.core.*;
+import flib.MathX;
+import org.jblas.FloatMatrix;
+import org.jblas.Solve;
+import org.opencv.core.KeyPoint;
 
 import java.util.ArrayList;
-
-import static org.opencv.core.CvType.*;
+import java.util.concurrent.TimeoutException;
 
 /**
  * 精确关键点定位（论文第4章）
  */
 public class KeyPointLocator {
-    static final float CONTRAST_CULLING_THRESHOLD = 0.03f;  // DoG响应低于此阈值的关键点将被剔除
-    static final float EDGE_CULLING_THRESHOLD =
-            (float) Math.pow(10 + 1, 2) / 10;               // 边缘剔除阈值
+    // 关键点被舍弃的原因
+    static final byte ACCEPTED = 0;             // 通过所有测试
+    static final byte OUT_OF_BOUND = 1;         // 定位过程中越界
+    static final byte NOT_CONVERGED = 2;        // 达到最大迭代次数仍未收敛
+    static final byte LOW_CONTRAST = 3;         // 未能通过弱对比剔除
+    static final byte ON_EDGE = 4;              // 未能通过边缘剔除
+
+    private static final double SINGULAR_TOLERANCE = 1e-9; // |det(H)|不大于此值与H最大元素绝对值的立方之积时，视H为奇异矩阵，改用伪逆求解
 
+    private final SiftConfig config;
     ArrayList<KeyPoint> keyPoints = null;
+    public int nOutOfBound, nNotConverged, nLowContrast, nOnEdge; // 上一次运行中因各种原因被舍弃的关键点数量
+
+    public KeyPointLocator() {
+        this(SiftConfig.DEFAULT);
+    }
+
+    public KeyPointLocator(SiftConfig config) {
+        this.config = config;
+    }
+
+    public ArrayList<KeyPoint> run(ArrayList<KeyPoint> coarseKeyPoints, ArrayList<Octave> octaves) throws InterruptedException, TimeoutException {
+        return run(coarseKeyPoints, octaves, config.parallel);
+    }
+
+    /**
+     * 精确定位全部关键点。并行模式下，每个关键点的结果写入对应的位置，输出顺序与串行模式相同。
+     *
+     * @param coarseKeyPoints 局部极值检测得到的粗糙关键点
+     * @param octaves         octaves
+     * @param parallel        是否并行定位
+     * @return 通过定位和剔除的关键点
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public ArrayList<KeyPoint> run(ArrayList<KeyPoint> coarseKeyPoints, ArrayList<Octave> octaves, boolean parallel) throws InterruptedException, TimeoutException {
+        if (GlobalParam.verbose) System.out.print("Localizing key points...");
+        KeyPoint[] results = new KeyPoint[coarseKeyPoints.size()];
+        byte[] verdicts = new byte[coarseKeyPoints.size()];
+        SiftExecutor.RangeOperation operation = (start, end) -> {
+            for (int k = start; k < end; k++) {
+                KeyPoint coarseKeyPoint = coarseKeyPoints.get(k);
+                results[k] = accurateLocalize((float) coarseKeyPoint.pt.x, (float) coarseKeyPoint.pt.y,
+                        Util.getLocalScale(coarseKeyPoint), coarseKeyPoint.octave, octaves, verdicts, k);
+            }
+        };
+        if (parallel) SiftExecutor.parallelFor(0, results.length, operation);
+        else operation.func(0, results.length);
+        return collect(results, verdicts);
+    }
+
+    public ArrayList<KeyPoint> run(CandidateBuffer candidates, ArrayList<Octave> octaves) throws InterruptedException, TimeoutException {
+        return run(candidates, octaves, config.parallel);
+    }
 
-    public ArrayList<KeyPoint> run(ArrayList<KeyPoint> coarseKeyPoints, ArrayList<Octave> octaves) {
-        System.out.print("Localizing key points...");
+    /**
+     * 直接由候选点缓冲区精确定位全部候选点，结果与对candidates.toKeyPoints()的结果调用run()相同。
+     * 候选点的坐标和尺度从缓冲区的基本类型数组中读取，只为通过定位和剔除的关键点创建KeyPoint，而不为每个候选点创建一个粗糙关键点。
+     *
+     * @param candidates 局部极值检测得到的候选点
+     * @param octaves    octaves
+     * @param parallel   是否并行定位
+     * @return 通过定位和剔除的关键点
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public ArrayList<KeyPoint> run(CandidateBuffer candidates, ArrayList<Octave> octaves, boolean parallel) throws InterruptedException, TimeoutException {
+        if (GlobalParam.verbose) System.out.print("Localizing key points...");
+        KeyPoint[] results = new KeyPoint[candidates.size()];
+        byte[] verdicts = new byte[candidates.size()];
+        SiftExecutor.RangeOperation operation = (start, end) -> {
+            for (int k = start; k < end; k++) {
+                results[k] = accurateLocalize(candidates.getX(k), candidates.getY(k),
+                        candidates.getLocalScale(k, config), candidates.getOctave(k), octaves, verdicts, k);
+            }
+        };
+        if (parallel) SiftExecutor.parallelFor(0, results.length, operation);
+        else operation.func(0, results.length);
+        return collect(results, verdicts);
+    }
+
+    /**
+     * 收集定位结果并统计各种原因被舍弃的关键点数量
+     *
+     * @param results  各关键点的定位结果，被舍弃的关键点为null
+     * @param verdicts 各关键点被舍弃的原因
+     * @return 通过定位和剔除的关键点
+     */
+    private ArrayList<KeyPoint> collect(KeyPoint[] results, byte[] verdicts) {
         keyPoints = new ArrayList<>();
-        for (KeyPoint coarseKeyPoint : coarseKeyPoints) {
-            KeyPoint keyPoint = accurateLocalize(coarseKeyPoint, octaves);
+        for (KeyPoint keyPoint : results) {
             if (keyPoint != null) keyPoints.add(keyPoint);
         }
-        System.out.println("DONE");
+        nOutOfBound = nNotConverged = nLowContrast = nOnEdge = 0;
+        for (byte verdict : verdicts) {
+            if (verdict == OUT_OF_BOUND) nOutOfBound++;
+            else if (verdict == NOT_CONVERGED) nNotConverged++;
+            else if (verdict == LOW_CONTRAST) nLowContrast++;
+            else if (verdict == ON_EDGE) nOnEdge++;
+        }
+        if (GlobalParam.verbose) System.out.println("DONE");
         return keyPoints;
     }
 
     /**
-     * 精确定位关键点
+     * 精确定位关键点。迭代过程中的位置、导数和位移均保存在局部变量中，梯度和Hessian矩阵直接由DoG图像平面的像素计算，
+     * 位移方程通过对称3×3矩阵的伴随矩阵求解；只有Hessian矩阵接近奇异时才回退到伪逆。除返回的关键点外，定位过程不分配对象。
      *
-     * @param coarseKeyPoint 局部极值检测得到的粗糙关键点
-     * @param octaves        octaves
+     * @param x          粗糙关键点的横坐标，octave内的局部坐标
+     * @param y          粗糙关键点的纵坐标，octave内的局部坐标
+     * @param localScale 粗糙关键点的局部尺度
+     * @param octaveNo   粗糙关键点的octave序号
+     * @param octaves    octaves
+     * @param verdicts   记录关键点被舍弃的原因的数组
+     * @param k          关键点的序号，结果将写入verdicts[k]
      * @return 精确定位的关键点。如果在定位过程中发生越界，或达到最大迭代次数未收敛，或未能通过弱对比和边缘剔除，将返回null。
      */
-    private static KeyPoint accurateLocalize(KeyPoint coarseKeyPoint, ArrayList<Octave> octaves) {
+    private KeyPoint accurateLocalize(float x, float y, float localScale, int octaveNo, ArrayList<Octave> octaves, byte[] verdicts, int k) {
         final int ITERATION_LIMIT = 5;
-        ArrayList<Mat> dogImages = octaves.get(coarseKeyPoint.octave).dogImages;
-        KeyPoint keyPoint = Util.keyPointDeepCopy(coarseKeyPoint);
-        Mat pixelCube = null;
-        FloatMatrix gradient = null, hessian = null, hessianInv, displace = null; // 预先声明在迭代结束后需要保存的变量
-        int width = dogImages.get(0).width(), height = dogImages.get(0).height();
+        ArrayList<FloatImage> dogPlanes = octaves.get(octaveNo).dogPlanes;
+        int width = dogPlanes.get(0).width, height = dogPlanes.get(0).height;
+        // 预先声明在迭代结束后需要保存的变量
+        float centerVal = 0, dx = 0, dy = 0, ds = 0, dxx = 0, dyy = 0, dxy = 0;
+        float offsetX = 0, offsetY = 0, offsetS = 0;
         int iteration = 1;
 
         for (; iteration <= ITERATION_LIMIT; iteration++) {
-            // 计算位移
-            try {
-                pixelCube = constructPixelCube(keyPoint, dogImages);
-            } catch (IndexOutOfBoundsExceptionC ex) { // 构建pixelCube时越界
+            // 取以当前位置为中心的3×3×3邻域
+            int intX = Math.round(x), intY = Math.round(y);
+            int imageId = (int) Math.round(MathX.log2(localScale / config.sigma) * config.s); // 本octave中的图像Id
+            if (imageId < 1 || imageId > dogPlanes.size() - 2 ||
+                    intX < 1 || intX >= width - 1 || intY < 1 || intY >= height - 1) { // 邻域越界
+                verdicts[k] = OUT_OF_BOUND;
                 return null;
             }
-            gradient = computeCenterPixelGradient(pixelCube);
-            hessian = computeCenterPixelHessian(pixelCube);
-            hessianInv = Solve.pinv(hessian);
-            displace = hessianInv.mmul(gradient).mul(-1); // 3x1
+            FloatImage curr = dogPlanes.get(imageId);
+            float[] p = dogPlanes.get(imageId - 1).data, c = curr.data, n = dogPlanes.get(imageId + 1).data;
+            int idx = curr.index(intX, intY), stride = curr.stride;
+
+            // 导数f'(x)的O(h^2)阶近似值为(f(x + 1) - f(x - 1)) / 2
+            // 二阶导数f''(x)的O(h^2)阶近似值为f(x + 1) - 2 * f(x) + f(x - 1)
+            // 混合偏导数的O(h^2)阶近似值为(f(x + 1, y + 1) - f(x + 1, y - 1) - f(x - 1, y + 1) + f(x - 1, y - 1)) / 4
+            centerVal = c[idx];
+            dx = (c[idx + 1] - c[idx - 1]) / 2;
+            dy = (c[idx + stride] - c[idx - stride]) / 2;
+            ds = (n[idx] - p[idx]) / 2;
+            dxx = c[idx + 1] - 2 * centerVal + c[idx - 1];
+            dyy = c[idx + stride] - 2 * centerVal + c[idx - stride];
+            float dss = n[idx] - 2 * centerVal + p[idx];
+            dxy = (c[idx + stride + 1] - c[idx - stride + 1] - c[idx + stride - 1] + c[idx - stride - 1]) / 4;
+            float dxs = (n[idx + 1] - p[idx + 1] - n[idx - 1] + p[idx - 1]) / 4;
+            float dys = (n[idx + stride] - p[idx + stride] - n[idx - stride] + p[idx - stride]) / 4;
+
+            // 求解H * offset = -gradient
+            double a = dxx, b = dyy, e = dss, d = dxy, f = dxs, g = dys; // H = [a d f; d b g; f g e]
+            double c00 = b * e - g * g, c01 = f * g - d * e, c02 = d * g - b * f;
+            double det = a * c00 + d * c01 + f * c02;
+            double scale = Math.max(Math.max(Math.abs(a), Math.abs(b)), Math.max(Math.abs(e),
+                    Math.max(Math.abs(d), Math.max(Math.abs(f), Math.abs(g)))));
+            if (Math.abs(det) > SINGULAR_TOLERANCE * scale * scale * scale) {
+                double c11 = a * e - f * f, c12 = d * f - a * g, c22 = a * b - d * d; // 伴随矩阵与H同为对称矩阵
+                offsetX = (float) (-(c00 * dx + c01 * dy + c02 * ds) / det);
+                offsetY = (float) (-(c01 * dx + c11 * dy + c12 * ds) / det);
+                offsetS = (float) (-(c02 * dx + c12 * dy + c22 * ds) / det);
+            } else {
+                FloatMatrix offset = Solve.pinv(new FloatMatrix(new float[][]{
+                        {dxx, dxy, dxs},
+                        {dxy, dyy, dys},
+                        {dxs, dys, dss}})).mmul(new FloatMatrix(new float[]{dx, dy, ds})).mul(-1);
+                offsetX = offset.get(0);
+                offsetY = offset.get(1);
+                offsetS = offset.get(2);
+            }
 
             // 更新位置
             // TODO 需要考虑梯度是对局部坐标求导的，还是对全局坐标求导的，两者有什么差异；进而确定如何更新位置
             // 这里全部使用局部坐标
-            float newX = (float) keyPoint.pt.x + displace.get(0), newY = (float) keyPoint.pt.y + displace.get(1),
-                    newLocalScale = Util.global2LocalScale(keyPoint.size, keyPoint.octave) + displace.get(2);
+            float newX = x + offsetX, newY = y + offsetY, newLocalScale = localScale + offsetS;
             if (Math.round(newX) < 0 || Math.round(newX) >= width || Math.round(newY) < 0 || Math.round(newY) > height ||
-                    newLocalScale < GlobalParam.SIGMA || newLocalScale > GlobalParam.MAX_LOCAL_SCALE)
-                return null; // 迭代过程中越界，舍弃此关键点
-            keyPoint = new KeyPoint(newX, newY, Util.local2GlobalScale(newLocalScale, keyPoint.octave), -1, 0, keyPoint.octave);
-            if (displace.get(0) < 0.5 && displace.get(1) < 0.5 && displace.get(2) < 0.5) {
+                    newLocalScale < config.sigma || newLocalScale > config.maxLocalScale) { // 迭代过程中越界，舍弃此关键点
+                verdicts[k] = OUT_OF_BOUND;
+                return null;
+            }
+            x = newX;
+            y = newY;
+            localScale = newLocalScale;
+            if (offsetX < 0.5 && offsetY < 0.5 && offsetS < 0.5) {
                 break;
             }
         }
-        if (iteration > 5) return null; // 迭代5次仍未收敛，舍弃此关键点
+        if (iteration > ITERATION_LIMIT) { // 迭代5次仍未收敛，舍弃此关键点
+            verdicts[k] = NOT_CONVERGED;
+            return null;
+        }
 
         // 弱对比剔除
-        float response = (float) pixelCube.get(1, 1)[1] + 0.5f * gradient.transpose().mmul(displace).get(0);
-        if (Math.abs(response) < CONTRAST_CULLING_THRESHOLD) return null;
-        keyPoint.response = response;
+        float response = centerVal + 0.5f * (dx * offsetX + dy * offsetY + ds * offsetS);
+        if (Math.abs(response) < config.contrastThreshold) {
+            verdicts[k] = LOW_CONTRAST;
+            return null;
+        }
         // 边缘剔除
-        float trace = hessian.get(0, 0) + hessian.get(1, 1);
-        float det = hessian.get(0, 0) * hessian.get(1, 1) -
-                hessian.get(0, 1) * hessian.get(1, 0);
-        if (det < 0 || Math.pow(trace, 2) / det >= EDGE_CULLING_THRESHOLD) return null;
-
-        return keyPoint; // 通过所有测试，返回精确定位的关键点
-    }
-
-    /**
-     * 以keyPoint为中心，构建3×3×3的像素立方
-     *
-     * @param keyPoint 像素立方的中心
-     * @param octaves  在图像上建立的所有octave
-     * @return 以keyPoint为中心，3×3×3的像素立方
-     * @throws IndexOutOfBoundsExceptionC 如果关键点位于图像边缘，导致采集周围像素时发生越界
-     */
-    private static Mat _constructPixelCube(KeyPoint keyPoint, ArrayList<Octave> octaves) throws IndexOutOfBoundsExceptionC {
-        return constructPixelCube(keyPoint, octaves.get(keyPoint.octave).dogImages);
-    }
-
-    /**
-     * 以keyPoint为中心，构建3×3×3的像素立方
-     *
-     * @param keyPoint  像素立方的中心
-     * @param dogImages DoG图像栈
-     * @return 以keyPoint为中心，3×3×3的像素立方
-     * @throws IndexOutOfBoundsExceptionC 如果关键点位于图像边缘，导致采集周围像素时发生越界
-     */
-    private static Mat constructPixelCube(KeyPoint keyPoint, ArrayList<Mat> dogImages) throws IndexOutOfBoundsExceptionC {
-        int intX = (int) Math.round(keyPoint.pt.x), intY = (int) Math.round(keyPoint.pt.y);
-        int imageId = Util.getLocalGaussianImageId(keyPoint); // 本octave中的图像Id
-        if (imageId < 1 || imageId > dogImages.size() - 2)
-            throw new IndexOutOfBoundsExceptionC("Image index " + imageId + " is out of bound.");
-        Mat pixelCube = new Mat(3, 3, CV_32FC3);
-        Mat prev = dogImages.get(imageId - 1), curr = dogImages.get(imageId), next = dogImages.get(imageId + 1);
-        for (int i = -1; i <= 1; i++) {
-            if (intX + i < 0 || intX + i >= curr.width())
-                throw new IndexOutOfBoundsExceptionC("X index " + intX + " is out of bound.");
-            for (int j = -1; j <= 1; j++) {
-                if (intY + j < 0 || intY + j >= curr.height())
-                    throw new IndexOutOfBoundsExceptionC("Y index " + intY + " is out of bound.");
-                pixelCube.put(j + 1, i + 1, new float[]{
-                        (float) prev.get(intY + j, intX + i)[0],
-                        (float) curr.get(intY + j, intX + i)[0],
-                        (float) next.get(intY + j, intX + i)[0]});
-            }
+        float trace = dxx + dyy;
+        float det = dxx * dyy - dxy * dxy;
+        if (det < 0 || Math.pow(trace, 2) / det >= config.edgeCullingThreshold) {
+            verdicts[k] = ON_EDGE;
+            return null;
         }
-        return pixelCube;
-    }
-
-    /**
-     * 计算像素立方体中中心像素处的梯度。
-     *
-     * @param pixelCube 3*3*3的像素立方体，要计算梯度的像素位于中间。
-     * @return 3*1的梯度向量，顺序为[dx,dy,ds]，其中dx表示沿列方向的导数，dy表示沿行方向的导数，ds表示沿尺度方向的导数。
-     */
-    private static FloatMatrix computeCenterPixelGradient(Mat pixelCube) {
-        // 导数f'(x)的O(h^2)阶近似值为(f(x + h) - f(x - h)) / (2 * h)
-        // 当h = 1时，上式简化为f'(x) = (f(x + 1) - f(x - 1)) / 2
-        float dx = (float) (pixelCube.get(1, 2)[1] - pixelCube.get(1, 0)[1]) / 2;
-        float dy = (float) (pixelCube.get(2, 1)[1] - pixelCube.get(0, 1)[1]) / 2;
-        float ds = (float) (pixelCube.get(1, 1)[2] - pixelCube.get(1, 1)[0]) / 2;
-        FloatMatrix gradient = new FloatMatrix(3, 1);
-        gradient.put(0, dx);
-        gradient.put(1, dy);
-        gradient.put(2, ds);
-        return gradient;
-    }
 
-    private static FloatMatrix computeCenterPixelHessian(Mat pixelCube) {
-        // 二阶导数f''(x)的O(h^2)阶近似值为(f(x + h) - 2 * f(x) + f(x - h)) / (h ^ 2)
-        // 当h = 1时，上式简化为f''(x) = (f(x + 1) - 2 * f(x) + f(x - 1))
-        // 混合偏导数(d^2) f / (dx dy)的O(h^2)阶近似值为(f(x + h, y + h) - f(x + h, y - h) - f(x - h, y + h) + f(x - h, y - h)) / (4 * h ^ 2)
-        // 当h = 1时，上式简化为(d^2) f / (dx dy) = (f(x + 1, y + 1) - f(x + 1, y - 1) - f(x - 1, y + 1) + f(x - 1, y - 1)) / 4
-        float centerVal = (float) pixelCube.get(1, 1)[1];
-        float dxx = (float) (pixelCube.get(1, 2)[1] - 2 * centerVal + pixelCube.get(1, 0)[1]);
-        float dyy = (float) (pixelCube.get(2, 1)[1] - 2 * centerVal + pixelCube.get(0, 1)[1]);
-        float dss = (float) (pixelCube.get(1, 1)[2] - 2 * centerVal + pixelCube.get(1, 1)[0]);
-        float dxy = (float) (pixelCube.get(2, 2)[1] - pixelCube.get(0, 2)[1]
-                - pixelCube.get(2, 0)[1] + pixelCube.get(0, 0)[1]) / 4;
-        float dxs = (float) (pixelCube.get(1, 2)[2] - pixelCube.get(1, 2)[0]
-                - pixelCube.get(1, 0)[2] + pixelCube.get(1, 0)[0]) / 4;
-        float dys = (float) (pixelCube.get(2, 1)[2] - pixelCube.get(2, 1)[0]
-                - pixelCube.get(0, 1)[2] + pixelCube.get(0, 1)[0]) / 4;
-        return new FloatMatrix(new float[][]{
-                {dxx, dxy, dxs},
-                {dxy, dyy, dys},
-                {dxs, dys, dss}});
+        verdicts[k] = ACCEPTED;
+        // 通过所有测试，返回精确定位的关键点
+        return new KeyPoint(x, y, Util.local2GlobalScale(localScale, octaveNo), -1, response, octaveNo);
     }
 }
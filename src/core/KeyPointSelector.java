@@ -0,0 +1,149 @@
+package core;
+
+import org.opencv.core.KeyPoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 按响应强度（|response|）筛选关键点，使关键点数量不超过上限。
+ * 前N强的关键点通过大小为N的有界堆选出，复杂度为O(n log N)。可选地将图像划分为网格，每个网格单元先保留各自最强的若干个关键点，
+ * 以使保留下来的关键点在图像中分布均匀。被选中的关键点保持原有的相对顺序。
+ */
+public class KeyPointSelector {
+
+    /**
+     * 按config.maxFeatures和config.bucketGridSize筛选关键点。
+     *
+     * @param keyPoints 精确定位后的关键点
+     * @param config    配置；maxFeatures不大于0时不做筛选
+     * @param width     输入图像的宽度
+     * @param height    输入图像的高度
+     * @return 被选中的关键点，保持原有的相对顺序；无需筛选时返回keyPoints本身
+     */
+    public static ArrayList<KeyPoint> select(ArrayList<KeyPoint> keyPoints, SiftConfig config, int width, int height) {
+        if (config.maxFeatures <= 0 || keyPoints.size() <= config.maxFeatures) return keyPoints;
+        int[] selected = select(keyPoints, config.maxFeatures, config.bucketGridSize, width, height);
+        ArrayList<KeyPoint> selectedKeyPoints = new ArrayList<>(selected.length);
+        for (int i : selected) selectedKeyPoints.add(keyPoints.get(i));
+        return selectedKeyPoints;
+    }
+
+    /**
+     * 选出至多maxFeatures个响应最强的关键点。gridSize大于1时，将输入图像划分为gridSize × gridSize的网格，
+     * 每个网格单元先保留其中最强的ceil(maxFeatures / gridSize^2)个关键点；若总数超出上限，再从中保留最强的maxFeatures个，
+     * 若不足上限，则从其余关键点中按强度补足。强度相同时，序号较小的关键点优先。
+     *
+     * @param keyPoints   关键点
+     * @param maxFeatures 关键点数量的上限，必须为正数
+     * @param gridSize    网格每条边上的单元数；不大于1时不分网格
+     * @param width       输入图像的宽度
+     * @param height      输入图像的高度
+     * @return 被选中的关键点在keyPoints中的序号，升序排列
+     */
+    public static int[] select(List<KeyPoint> keyPoints, int maxFeatures, int gridSize, int width, int height) {
+        int n = keyPoints.size();
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++) all[i] = i;
+        if (n <= maxFeatures) return all;
+
+        float[] strength = new float[n];
+        for (int i = 0; i < n; i++) strength[i] = Math.abs(keyPoints.get(i).response);
+
+        int[] selected;
+        if (gridSize <= 1) {
+            selected = topK(all, n, maxFeatures, strength);
+        } else {
+            // 按网格单元对关键点做计数排序
+            int nCell = gridSize * gridSize;
+            int[] cellOf = new int[n], cellStart = new int[nCell + 1];
+            for (int i = 0; i < n; i++) {
+                float[] pos = Util.relocate(keyPoints.get(i), 1); // 输入图像坐标
+                int cx = Math.min(Math.max((int) (pos[0] / width * gridSize), 0), gridSize - 1);
+                int cy = Math.min(Math.max((int) (pos[1] / height * gridSize), 0), gridSize - 1);
+                cellOf[i] = cy * gridSize + cx;
+                cellStart[cellOf[i] + 1]++;
+            }
+            for (int c = 0; c < nCell; c++) cellStart[c + 1] += cellStart[c];
+            int[] order = new int[n], fill = Arrays.copyOf(cellStart, nCell);
+            for (int i = 0; i < n; i++) order[fill[cellOf[i]]++] = i;
+
+            // 每个单元保留最强的quota个
+            int quota = (maxFeatures + nCell - 1) / nCell;
+            boolean[] taken = new boolean[n];
+            int[] picked = new int[n];
+            int nPicked = 0;
+            for (int c = 0; c < nCell; c++) {
+                int[] cell = Arrays.copyOfRange(order, cellStart[c], cellStart[c + 1]);
+                for (int i : topK(cell, cell.length, quota, strength)) {
+                    taken[i] = true;
+                    picked[nPicked++] = i;
+                }
+            }
+
+            if (nPicked >= maxFeatures) {
+                selected = topK(picked, nPicked, maxFeatures, strength);
+            } else {
+                int[] rest = new int[n - nPicked];
+                int nRest = 0;
+                for (int i = 0; i < n; i++) {
+                    if (!taken[i]) rest[nRest++] = i;
+                }
+                int[] extra = topK(rest, nRest, maxFeatures - nPicked, strength);
+                selected = Arrays.copyOf(picked, nPicked + extra.length);
+                System.arraycopy(extra, 0, selected, nPicked, extra.length);
+            }
+        }
+        Arrays.sort(selected);
+        return selected;
+    }
+
+    /**
+     * 使用大小为k的有界堆，从candidates的前count个元素中选出强度最大的k个。堆顶为已选出的元素中最弱的一个，
+     * 新元素只有比堆顶更强时才会替换堆顶。
+     *
+     * @param candidates 候选关键点的序号
+     * @param count      候选关键点的数量
+     * @param k          需要选出的数量
+     * @param strength   各关键点的强度
+     * @return 选出的关键点的序号，顺序不定；候选不足k个时返回全部候选
+     */
+    private static int[] topK(int[] candidates, int count, int k, float[] strength) {
+        if (count <= k) return Arrays.copyOf(candidates, count);
+        int[] heap = new int[k];
+        int size = 0;
+        for (int c = 0; c < count; c++) {
+            int id = candidates[c];
+            if (size < k) {
+                heap[size] = id;
+                for (int i = size++; i > 0 && weaker(heap[i], heap[(i - 1) / 2], strength); i = (i - 1) / 2)
+                    swap(heap, i, (i - 1) / 2);
+            } else if (weaker(heap[0], id, strength)) {
+                heap[0] = id;
+                for (int i = 0; ; ) {
+                    int weakest = i, left = 2 * i + 1, right = left + 1;
+                    if (left < k && weaker(heap[left], heap[weakest], strength)) weakest = left;
+                    if (right < k && weaker(heap[right], heap[weakest], strength)) weakest = right;
+                    if (weakest == i) break;
+                    swap(heap, i, weakest);
+                    i = weakest;
+                }
+            }
+        }
+        return heap;
+    }
+
+    /**
+     * 判断关键点a是否弱于关键点b：强度较小者较弱，强度相同时序号较大者较弱
+     */
+    private static boolean weaker(int a, int b, float[] strength) {
+        return strength[a] < strength[b] || (strength[a] == strength[b] && a > b);
+    }
+
+    private static void swap(int[] array, int i, int j) {
+        int tmp = array[i];
+        array[i] = array[j];
+        array[j] = tmp;
+    }
+}
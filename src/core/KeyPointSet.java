@@ -0,0 +1,254 @@
+package core;
+
+import org.jblas.FloatMatrix;
+import org.opencv.core.KeyPoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 以结构数组（struct-of-arrays）形式存储的带描述子的关键点集合。关键点的位置、尺度、朝向、响应和octave序号各存放在一个基本类型数组中，
+ * 全部描述子按行紧密存储在一个float数组中，第i个描述子位于[i * descriptorLength, (i + 1) * descriptorLength)。
+ * 各字段的含义与SIFT输出的KeyPoint相同（位置为所在octave的局部坐标，尺度为全局尺度）。
+ * <p>
+ * 相比于ArrayList&lt;KeyPointX&gt;，这种存储方式不需要为每个关键点创建KeyPoint、Point和FloatMatrix对象；
+ * 描述子块可以直接传给DescriptorMatcher、DescriptorIndex等以紧密数组为输入的组件。需要对象形式时，可通过toKeyPoints()、toKeyPointXes()转换。
+ * 该类不是线程安全的。
+ */
+public class KeyPointSet {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int descriptorLength;
+    private float[] xs, ys, sizes, angles, responses;
+    private int[] octaves;
+    float[] descriptors; // 描述子块；DescriptorGenerator直接向其中写入描述子
+    private int size = 0;
+
+    public KeyPointSet(int descriptorLength) {
+        this(INITIAL_CAPACITY, descriptorLength);
+    }
+
+    public KeyPointSet(int capacity, int descriptorLength) {
+        if (descriptorLength < 0)
+            throw new IllegalArgumentException("descriptorLength must not be negative, got " + descriptorLength + ".");
+        capacity = Math.max(capacity, 1);
+        this.descriptorLength = descriptorLength;
+        xs = new float[capacity];
+        ys = new float[capacity];
+        sizes = new float[capacity];
+        angles = new float[capacity];
+        responses = new float[capacity];
+        octaves = new int[capacity];
+        descriptors = new float[capacity * descriptorLength];
+    }
+
+    /**
+     * 以一组关键点创建集合，描述子块分配好但内容为0，由调用者写入。
+     *
+     * @param keyPoints        关键点
+     * @param descriptorLength 描述子的长度
+     * @return 包含keyPoints的集合
+     */
+    static KeyPointSet withKeyPoints(List<KeyPoint> keyPoints, int descriptorLength) {
+        KeyPointSet set = new KeyPointSet(keyPoints.size(), descriptorLength);
+        for (KeyPoint keyPoint : keyPoints) set.addKeyPoint(keyPoint);
+        return set;
+    }
+
+    /**
+     * 将KeyPointX列表转换为集合。关键点的class_id不会被保留。
+     *
+     * @param keyPointXes KeyPointX列表，所有描述子的长度必须相同
+     * @return 与keyPointXes内容相同的集合
+     * @throws IllegalArgumentException 如果描述子的长度不一致，将抛出此异常。
+     */
+    public static KeyPointSet fromKeyPointXes(List<KeyPointX> keyPointXes) {
+        int descriptorLength = keyPointXes.isEmpty() ? 0 : keyPointXes.get(0).descriptor.length;
+        KeyPointSet set = new KeyPointSet(keyPointXes.size(), descriptorLength);
+        for (KeyPointX keyPointX : keyPointXes) {
+            if (keyPointX.descriptor.length != descriptorLength)
+                throw new IllegalArgumentException("All descriptors must have the same length " + descriptorLength + ", got " + keyPointX.descriptor.length + ".");
+            set.add(keyPointX.keyPoint, keyPointX.descriptor.data, 0);
+        }
+        return set;
+    }
+
+    /**
+     * 添加一个关键点
+     *
+     * @param keyPoint   关键点
+     * @param descriptor 存放描述子的数组
+     * @param offset     描述子在descriptor中的起始位置
+     */
+    public void add(KeyPoint keyPoint, float[] descriptor, int offset) {
+        addKeyPoint(keyPoint);
+        System.arraycopy(descriptor, offset, descriptors, (size - 1) * descriptorLength, descriptorLength);
+    }
+
+    private void addKeyPoint(KeyPoint keyPoint) {
+        ensureCapacity(size + 1);
+        xs[size] = (float) keyPoint.pt.x;
+        ys[size] = (float) keyPoint.pt.y;
+        sizes[size] = keyPoint.size;
+        angles[size] = keyPoint.angle;
+        responses[size] = keyPoint.response;
+        octaves[size] = keyPoint.octave;
+        size++;
+    }
+
+    /**
+     * 将other中的全部关键点按原有顺序追加到此集合的末尾
+     *
+     * @param other 另一个描述子长度相同的集合
+     * @throws IllegalArgumentException 如果两个集合的描述子长度不同，将抛出此异常。
+     */
+    public void addAll(KeyPointSet other) {
+        if (other.descriptorLength != descriptorLength)
+            throw new IllegalArgumentException("Descriptor lengths differ: " + descriptorLength + " and " + other.descriptorLength + ".");
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.xs, 0, xs, size, other.size);
+        System.arraycopy(other.ys, 0, ys, size, other.size);
+        System.arraycopy(other.sizes, 0, sizes, size, other.size);
+        System.arraycopy(other.angles, 0, angles, size, other.size);
+        System.arraycopy(other.responses, 0, responses, size, other.size);
+        System.arraycopy(other.octaves, 0, octaves, size, other.size);
+        System.arraycopy(other.descriptors, 0, descriptors, size * descriptorLength, other.size * descriptorLength);
+        size += other.size;
+    }
+
+    /**
+     * 按序号取出部分关键点，组成新的集合
+     *
+     * @param indices 关键点的序号
+     * @return 依次包含indices所指关键点的新集合
+     */
+    public KeyPointSet subset(int[] indices) {
+        KeyPointSet subset = new KeyPointSet(indices.length, descriptorLength);
+        for (int j = 0; j < indices.length; j++) {
+            int i = indices[j];
+            subset.xs[j] = xs[i];
+            subset.ys[j] = ys[i];
+            subset.sizes[j] = sizes[i];
+            subset.angles[j] = angles[i];
+            subset.responses[j] = responses[i];
+            subset.octaves[j] = octaves[i];
+            System.arraycopy(descriptors, i * descriptorLength, subset.descriptors, j * descriptorLength, descriptorLength);
+        }
+        subset.size = indices.length;
+        return subset;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= xs.length) return;
+        int newCapacity = Math.max(capacity, xs.length * 2);
+        xs = Arrays.copyOf(xs, newCapacity);
+        ys = Arrays.copyOf(ys, newCapacity);
+        sizes = Arrays.copyOf(sizes, newCapacity);
+        angles = Arrays.copyOf(angles, newCapacity);
+        responses = Arrays.copyOf(responses, newCapacity);
+        octaves = Arrays.copyOf(octaves, newCapacity);
+        descriptors = Arrays.copyOf(descriptors, newCapacity * descriptorLength);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getDescriptorLength() {
+        return descriptorLength;
+    }
+
+    public float getX(int i) {
+        return xs[i];
+    }
+
+    public float getY(int i) {
+        return ys[i];
+    }
+
+    public float getSize(int i) {
+        return sizes[i];
+    }
+
+    public float getAngle(int i) {
+        return angles[i];
+    }
+
+    public float getResponse(int i) {
+        return responses[i];
+    }
+
+    public int getOctave(int i) {
+        return octaves[i];
+    }
+
+    /**
+     * 返回描述子块，不发生复制。第i个描述子位于[i * getDescriptorLength(), (i + 1) * getDescriptorLength())；
+     * 数组的长度可能大于size() * getDescriptorLength()，多余部分没有意义。调用者不应修改数组的内容。
+     *
+     * @return 描述子块
+     */
+    public float[] getDescriptors() {
+        return descriptors;
+    }
+
+    /**
+     * 将第i个描述子复制到out[offset, offset + 描述子长度)
+     *
+     * @param i      关键点序号
+     * @param out    输出数组
+     * @param offset 描述子在out中的起始位置
+     */
+    public void getDescriptor(int i, float[] out, int offset) {
+        System.arraycopy(descriptors, i * descriptorLength, out, offset, descriptorLength);
+    }
+
+    /**
+     * 创建第i个关键点的KeyPoint对象
+     *
+     * @param i 关键点序号
+     * @return 第i个关键点
+     */
+    public KeyPoint getKeyPoint(int i) {
+        return new KeyPoint(xs[i], ys[i], sizes[i], angles[i], responses[i], octaves[i]);
+    }
+
+    /**
+     * 转换为KeyPoint列表，可直接用于Visualization.visualize()
+     *
+     * @return KeyPoint列表
+     */
+    public ArrayList<KeyPoint> toKeyPoints() {
+        ArrayList<KeyPoint> keyPoints = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) keyPoints.add(getKeyPoint(i));
+        return keyPoints;
+    }
+
+    /**
+     * 转换为描述子列表，每个描述子为一个列向量
+     *
+     * @return 描述子列表
+     */
+    public ArrayList<FloatMatrix> toDescriptorMatrices() {
+        ArrayList<FloatMatrix> descriptorMatrices = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            descriptorMatrices.add(new FloatMatrix(Arrays.copyOfRange(descriptors, i * descriptorLength, (i + 1) * descriptorLength)));
+        }
+        return descriptorMatrices;
+    }
+
+    /**
+     * 转换为KeyPointX列表
+     *
+     * @return KeyPointX列表
+     */
+    public ArrayList<KeyPointX> toKeyPointXes() {
+        ArrayList<KeyPointX> keyPointXes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            FloatMatrix descriptor = new FloatMatrix(Arrays.copyOfRange(descriptors, i * descriptorLength, (i + 1) * descriptorLength));
+            keyPointXes.add(KeyPointX.wrap(getKeyPoint(i), descriptor));
+        }
+        return keyPointXes;
+    }
+}
@@ -12,6 +12,22 @@ public class KeyPointX implements Comparable<KeyPointX> {
         this.descriptor = descriptor.dup();
     }
 
+    private KeyPointX(FloatMatrix descriptor, KeyPoint keyPoint) {
+        this.keyPoint = keyPoint;
+        this.descriptor = descriptor;
+    }
+
+    /**
+     * 直接以keyPoint和descriptor创建KeyPointX，不进行复制。调用者需保证两者不再被其他对象引用。
+     *
+     * @param keyPoint   关键点
+     * @param descriptor 描述子
+     * @return 引用keyPoint和descriptor的KeyPointX
+     */
+    static KeyPointX wrap(KeyPoint keyPoint, FloatMatrix descriptor) {
+        return new KeyPointX(descriptor, keyPoint);
+    }
+
     @Override
     public String toString() {
         return "{" + keyPoint.toString() + "; Descriptor " + descriptor.toString() + "}";
@@ -24,6 +24,15 @@ public class Main {
     private static final String STORAGE_FILE_PATH = "data/box_in_scene.dat";
 
     public static void main(String[] args) {
+        if (args.length > 0) { // 带参数运行时，进入非交互式的批量提取模式
+            try {
+                BatchExtractor.main(args);
+            } catch (IOException | InterruptedException ex) {
+                ex.printStackTrace();
+            }
+            return;
+        }
+
         Scanner in = new Scanner(System.in);
         while (true) {
             System.out.print("图像路径：");
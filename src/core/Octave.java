@@ -3,15 +3,25 @@ package core;
 import org.opencv.core.*;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 import static org.opencv.core.Core.*;
 import static org.opencv.imgproc.Imgproc.*;
 
-public class Octave {
+public class Octave implements AutoCloseable {
     final ArrayList<GaussianImage> gaussianImages = new ArrayList<>();
     final ArrayList<Mat> dogImages = new ArrayList<>();
+    final ArrayList<FloatImage> dogPlanes = new ArrayList<>(); // 与dogImages一一对应的图像平面
+    final PlanePool pool; // 构建octave时取出缓冲区的池（包括按需构建的梯度平面），close()时将缓冲区归还
 
     public Octave(GaussianImage bottomImage) {
+        this(bottomImage, PlanePool.NONE);
+    }
+
+    Octave(GaussianImage bottomImage, PlanePool pool) {
+        this.pool = pool;
         gaussianImages.add(bottomImage);
     }
 
@@ -27,14 +37,204 @@ public class Octave {
         buildOctave(bottomImage, sigma, s);
     }
 
+    /**
+     * 对每张高斯图像从栈底图像开始滤波以构建octave，高斯图像、DoG图像及其图像平面均从pool中取出。
+     * 栈底图像直接成为octave的第一张高斯图像，此后由octave持有。
+     * 各高斯图像互不依赖，config.parallel开启时每张图像的滤波作为独立的任务提交到SiftExecutor的线程池；构建线程按顺序等待，
+     * 相邻两张高斯图像就绪后立即计算其DoG图像并通知onDogReady，同时后续图像的滤波仍在进行。
+     * 构建失败时，先等待已提交的滤波任务结束，再释放octave的全部图像；已通知的DoG图像平面不归还到池中，因此仍在读取它们的调用者不受影响。
+     *
+     * @param bottomImage octave的栈底图像，必须已经过标准差为config.sigma的高斯滤波，并且包含Mat。
+     * @param config      配置，将决定octave中的图像数量，以及每张高斯图像使用的标准差。
+     * @param pool        缓冲区池
+     * @param onDogReady  在构建线程中依次以每张新的DoG图像平面调用；此时该DoG图像及之前的全部图像都已就绪，此后不再被修改
+     * @return 构建好的octave
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    static Octave build(GaussianImage bottomImage, SiftConfig config, PlanePool pool, Consumer<FloatImage> onDogReady) throws InterruptedException, TimeoutException {
+        Octave octave = new Octave(bottomImage, pool);
+        Mat bottom = bottomImage.image;
+        int width = bottom.width(), height = bottom.height(), n = config.s + 2;
+        // 缓冲区池不是线程安全的，先在当前线程中取出全部缓冲区
+        Mat[] images = new Mat[n];
+        FloatImage[] planes = new FloatImage[n];
+        double[] sigmas = new double[n];
+        double sigma = config.sigma, k = Math.pow(2, 1. / config.s);
+        for (int i = 0; i < n; i++) {
+            sigma *= k;
+            sigmas[i] = sigma;
+            images[i] = pool.acquireMat(width, height);
+            planes[i] = pool.acquire(width, height);
+        }
+        ArrayList<ForkJoinTask<Object>> blurs = new ArrayList<>(n);
+        boolean completed = false;
+        try {
+            if (config.parallel) {
+                for (int i = 0; i < n; i++) {
+                    Mat image = images[i];
+                    FloatImage plane = planes[i];
+                    double layerSigma = sigmas[i];
+                    blurs.add(SiftExecutor.submit(() -> {
+                        blur(bottom, image, plane, layerSigma);
+                        return null;
+                    }));
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                if (config.parallel) SiftExecutor.await(blurs.get(i));
+                else blur(bottom, images[i], planes[i], sigmas[i]);
+                octave.gaussianImages.add(new GaussianImage(images[i], planes[i], sigmas[i]));
+                images[i] = null; // 此后由octave持有
+                planes[i] = null;
+
+                Mat dog = pool.acquireMat(width, height);
+                octave.dogImages.add(dog);
+                subtract(octave.gaussianImages.get(i).image, octave.gaussianImages.get(i + 1).image, dog);
+                octave.dogPlanes.add(pool.fromMat(dog));
+                onDogReady.accept(octave.dogPlanes.get(i));
+            }
+            completed = true;
+            return octave;
+        } finally {
+            if (!completed) {
+                for (ForkJoinTask<Object> task : blurs) task.quietlyJoin(); // 滤波任务结束后才能释放它们写入的缓冲区
+                for (int i = 0; i < n; i++) {
+                    if (images[i] != null) pool.recycle(images[i]);
+                    if (planes[i] != null) pool.recycle(planes[i]);
+                }
+                octave.release();
+            }
+        }
+    }
+
+    /**
+     * 对栈底图像进行高斯滤波，并将结果复制到图像平面
+     */
+    private static void blur(Mat bottom, Mat image, FloatImage plane, double sigma) {
+        GaussianBlur(bottom, image, new Size(), sigma);
+        image.get(0, 0, plane.data);
+    }
+
+    /**
+     * 以增量方式构建octave：每张高斯图像由上一张高斯图像经标准差为sqrt(σ_i^2 - σ_{i-1}^2)的可分离高斯滤波得到，
+     * 滤波的同时计算DoG图像。以此方式构建的octave只包含图像平面，不包含Mat。
+     *
+     * @param bottomImage octave的栈底图像，必须已经过标准差为config.sigma的高斯滤波。
+     * @param config      配置，将决定octave中的图像数量，以及每张高斯图像使用的标准差；卷积核取自配置的缓存。
+     * @return 构建好的octave
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public static Octave buildIncremental(FloatImage bottomImage, SiftConfig config) throws InterruptedException, TimeoutException {
+        return buildIncremental(bottomImage, config, PlanePool.NONE);
+    }
+
+    /**
+     * 以增量方式构建octave，高斯图像平面、DoG图像平面及滤波的中间结果均从pool中取出；中间结果在构建完成后归还。
+     *
+     * @param bottomImage octave的栈底图像，必须已经过标准差为config.sigma的高斯滤波。
+     * @param config      配置
+     * @param pool        图像平面池
+     * @return 构建好的octave
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    static Octave buildIncremental(FloatImage bottomImage, SiftConfig config, PlanePool pool) throws InterruptedException, TimeoutException {
+        return buildIncremental(bottomImage, config, pool, dog -> {
+        });
+    }
+
+    /**
+     * 以增量方式构建octave，每计算完一张DoG图像即通知onDogReady；其余同buildIncremental(bottomImage, config, pool)。
+     * 各高斯图像依次依赖于上一张，无法并行滤波；每张图像的滤波本身按行并行。
+     *
+     * @param bottomImage octave的栈底图像，必须已经过标准差为config.sigma的高斯滤波。
+     * @param config      配置
+     * @param pool        图像平面池
+     * @param onDogReady  在构建线程中依次以每张新的DoG图像平面调用；此时该DoG图像及之前的全部图像都已就绪，此后不再被修改
+     * @return 构建好的octave
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    static Octave buildIncremental(FloatImage bottomImage, SiftConfig config, PlanePool pool, Consumer<FloatImage> onDogReady) throws InterruptedException, TimeoutException {
+        double sigma = config.sigma;
+        Octave octave = new Octave(new GaussianImage(bottomImage, sigma), pool);
+        float[][] kernels = config.incrementalKernels();
+        double k = Math.pow(2, 1. / config.s);
+        FloatImage tmp = pool.acquire(bottomImage.width, bottomImage.height);
+        FloatImage prev = bottomImage;
+        for (float[] kernel : kernels) {
+            sigma *= k;
+            FloatImage curr = pool.acquire(bottomImage.width, bottomImage.height);
+            FloatImage dog = pool.acquire(bottomImage.width, bottomImage.height);
+            SeparableGaussian.blur(prev, kernel, tmp, curr, dog);
+            octave.gaussianImages.add(new GaussianImage(curr, sigma));
+            octave.dogPlanes.add(dog);
+            onDogReady.accept(dog);
+            prev = curr;
+        }
+        pool.recycle(tmp);
+        return octave;
+    }
+
     public Octave(List<GaussianImage> gaussianImages, List<Mat> dogImages) {
+        this.pool = PlanePool.NONE;
         this.gaussianImages.addAll(gaussianImages);
         this.dogImages.addAll(dogImages);
+        for (Mat dog : dogImages) dogPlanes.add(FloatImage.fromMat(dog));
+    }
+
+    /**
+     * 计算octave中全部图像占用的字节数，包括高斯图像和DoG图像的Mat（本地内存，如果存在），对应的图像平面（Java堆内存），以及已缓存的梯度平面。
+     *
+     * @return octave中全部图像占用的字节数
+     */
+    public long byteCount() {
+        long bytes = 0;
+        for (GaussianImage gaussianImage : gaussianImages) {
+            bytes += (long) Float.BYTES * gaussianImage.plane.data.length;
+            if (gaussianImage.image != null) bytes += Float.BYTES * gaussianImage.image.total();
+            if (gaussianImage.gradient != null) bytes += gaussianImage.gradient.byteCount();
+        }
+        for (FloatImage dogPlane : dogPlanes) bytes += (long) Float.BYTES * dogPlane.data.length;
+        for (Mat dogImage : dogImages) bytes += Float.BYTES * dogImage.total();
+        return bytes;
+    }
+
+    /**
+     * 释放octave中全部图像：Mat的本地内存立即释放，图像平面在失去引用后由垃圾回收器回收。释放后octave不再包含任何图像。
+     * 与close()不同，缓冲区不会归还到构建octave时使用的池。
+     */
+    public void release() {
+        for (GaussianImage gaussianImage : gaussianImages) {
+            if (gaussianImage.image != null) gaussianImage.image.release();
+            gaussianImage.gradient = null;
+        }
+        for (Mat dogImage : dogImages) dogImage.release();
+        gaussianImages.clear();
+        dogImages.clear();
+        dogPlanes.clear();
+    }
+
+    /**
+     * 将octave中全部图像归还到构建octave时使用的缓冲区池；池不接受的Mat立即释放本地内存。之后octave不再包含任何图像。
+     * 以公有构造函数创建的octave不使用池，此时与release()相同。
+     */
+    @Override
+    public void close() {
+        for (GaussianImage gaussianImage : gaussianImages) pool.recycle(gaussianImage);
+        for (Mat dogImage : dogImages) pool.recycle(dogImage);
+        for (FloatImage dogPlane : dogPlanes) pool.recycle(dogPlane);
+        gaussianImages.clear();
+        dogImages.clear();
+        dogPlanes.clear();
     }
 
     /**
      * 构建octave。将对bottomImage进行标准差为kσ, k^2σ,...,2σ, 2kσ, 2k^2σ的高斯滤波，以生成高斯图像；k=2^(1/s)。
-     * 之后，相邻的高斯图像将相减，以得到DoG图像。
+     * 之后，相邻的高斯图像将相减，以得到DoG图像。每张高斯图像和DoG图像都会被一次性复制为图像平面，供后续各阶段直接访问。
+     * 全部Mat和图像平面均从pool中取出；OpenCV直接写入尺寸和类型相符的输出，不重新分配。
      *
      * @param bottomImage octave的栈底图像，必须已经过高斯滤波。
      * @param sigma       栈底图像高斯滤波的标准差。
@@ -44,26 +244,40 @@ public class Octave {
         double k = Math.pow(2, 1. / s);
         for (int i = 1; i <= s + 2; i++) {
             sigma *= k;
-            Mat gaussianImage = new Mat();
+            Mat gaussianImage = pool.acquireMat(bottomImage.width(), bottomImage.height());
             GaussianBlur(bottomImage, gaussianImage, new Size(), sigma);
-            gaussianImages.add(new GaussianImage(gaussianImage, sigma));
+            gaussianImages.add(new GaussianImage(gaussianImage, pool.fromMat(gaussianImage), sigma));
         }
 
         for (int i = 1; i < gaussianImages.size(); i++) {
             Mat lastImage = gaussianImages.get(i - 1).image, thisImage = gaussianImages.get(i).image;
-            Mat dog = new Mat();
+            Mat dog = pool.acquireMat(bottomImage.width(), bottomImage.height());
             subtract(lastImage, thisImage, dog);
             dogImages.add(dog);
+            dogPlanes.add(pool.fromMat(dog));
         }
     }
 }
 
 class GaussianImage {
-    Mat image;
+    Mat image;              // 以增量方式构建的octave中为null
+    final FloatImage plane; // 与image内容相同的图像平面
     final double sigma;
+    GradientPlane gradient; // 梯度幅值和朝向的缓存，由GradientPlane.prepare()按需构建，未构建时为null
 
     GaussianImage(Mat image, double sigma) {
+        this(image, FloatImage.fromMat(image), sigma);
+    }
+
+    GaussianImage(Mat image, FloatImage plane, double sigma) {
         this.image = image;
+        this.plane = plane;
+        this.sigma = sigma;
+    }
+
+    GaussianImage(FloatImage plane, double sigma) {
+        this.image = null;
+        this.plane = plane;
         this.sigma = sigma;
     }
 }
\ No newline at end of file
@@ -5,31 +5,80 @@ import org.jblas.FloatMatrix;
 import org.opencv.core.KeyPoint;
 
 import java.util.ArrayList;
+import java.util.concurrent.TimeoutException;
 
 /**
  * 计算关键点朝向（论文第5章）
  */
 public class OrientationComputer {
 
-    private static final int N_BIN = 36;            // 朝向直方图的堆栈数量
-    private static final float PEAK_RATIO = 0.8f;   // 峰值比例；如果朝向直方图中某个堆栈的值大于最大值的一定比例，则会在此堆栈对应的方向上也建立一个关键点
+    private final SiftConfig config; // 朝向直方图的堆栈数量及峰值比例取自config.orientationBins和config.peakRatio
 
-    public ArrayList<KeyPoint> run(ArrayList<KeyPoint> keyPoints, ArrayList<Octave> octaves) {
-        System.out.print("Computing orientations...");
+    public OrientationComputer() {
+        this(SiftConfig.DEFAULT);
+    }
+
+    public OrientationComputer(SiftConfig config) {
+        this.config = config;
+    }
+
+    public ArrayList<KeyPoint> run(ArrayList<KeyPoint> keyPoints, ArrayList<Octave> octaves) throws InterruptedException, TimeoutException {
+        return run(keyPoints, octaves, config.parallel);
+    }
+
+    /**
+     * 计算全部关键点的朝向。一个关键点可能对应多个朝向，每个朝向都将生成一个新的关键点。
+     * 并行模式下，每个关键点生成的结果写入对应的位置，输出顺序与串行模式相同。
+     * 开启config.gradientCache时，先为关键点所在的高斯图像构建梯度平面，采样时直接读取，见GradientPlane。
+     *
+     * @param keyPoints 精确定位后的关键点
+     * @param octaves   octaves
+     * @param parallel  是否并行计算
+     * @return 带有朝向的关键点
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public ArrayList<KeyPoint> run(ArrayList<KeyPoint> keyPoints, ArrayList<Octave> octaves, boolean parallel) throws InterruptedException, TimeoutException {
         ArrayList<KeyPoint> keyPointsWithOrientations = new ArrayList<>();
-        for (KeyPoint keyPoint : keyPoints) {
-            FloatMatrix hist = computeOrientationHist(keyPoint, octaves);
-            ArrayList<Float> orientations = computeOrientations(hist);
-            for (Float orientation : orientations) {
-                KeyPoint keyPointWithOrientation = Util.keyPointDeepCopy(keyPoint);
-                keyPointWithOrientation.angle = orientation;
-                keyPointsWithOrientations.add(keyPointWithOrientation);
-            }
-        }
-        System.out.println("DONE");
+        for (ArrayList<KeyPoint> result : runPerKeyPoint(keyPoints, octaves, parallel)) keyPointsWithOrientations.addAll(result);
         return keyPointsWithOrientations;
     }
 
+    /**
+     * 计算全部关键点的朝向，按输入的关键点分组返回，其余同run()。逐octave运行时据此得知每个带朝向的关键点来自哪一个输入关键点。
+     *
+     * @param keyPoints 精确定位后的关键点
+     * @param octaves   octaves
+     * @param parallel  是否并行计算
+     * @return 第k个元素为由keyPoints中第k个关键点生成的带朝向的关键点
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    ArrayList<KeyPoint>[] runPerKeyPoint(ArrayList<KeyPoint> keyPoints, ArrayList<Octave> octaves, boolean parallel) throws InterruptedException, TimeoutException {
+        if (GlobalParam.verbose) System.out.print("Computing orientations...");
+        if (config.gradientCache) GradientPlane.prepare(keyPoints, octaves, config);
+        @SuppressWarnings("unchecked")
+        ArrayList<KeyPoint>[] results = new ArrayList[keyPoints.size()];
+        SiftExecutor.RangeOperation operation = (start, end) -> {
+            for (int k = start; k < end; k++) {
+                KeyPoint keyPoint = keyPoints.get(k);
+                FloatMatrix hist = computeOrientationHist(keyPoint, octaves);
+                ArrayList<Float> orientations = computeOrientations(hist);
+                ArrayList<KeyPoint> keyPointsWithOrientation = new ArrayList<>(orientations.size());
+                for (Float orientation : orientations) {
+                    KeyPoint keyPointWithOrientation = Util.keyPointDeepCopy(keyPoint);
+                    keyPointWithOrientation.angle = orientation;
+                    keyPointsWithOrientation.add(keyPointWithOrientation);
+                }
+                results[k] = keyPointsWithOrientation;
+            }
+        };
+        if (parallel) SiftExecutor.parallelFor(0, results.length, operation);
+        else operation.func(0, results.length);
+        if (GlobalParam.verbose) System.out.println("DONE");
+        return results;
+    }
+
     /**
      * 在以关键点为中心的区域内计算朝向直方图
      *
@@ -37,8 +86,11 @@ public class OrientationComputer {
      * @param octaves  octaves
      * @return 以keyPoint为中心的区域内的朝向直方图
      */
-    private static FloatMatrix computeOrientationHist(KeyPoint keyPoint, ArrayList<Octave> octaves) {
-        GaussianImage gaussianImage = octaves.get(keyPoint.octave).gaussianImages.get(Util.getLocalGaussianImageId(keyPoint));
+    private FloatMatrix computeOrientationHist(KeyPoint keyPoint, ArrayList<Octave> octaves) {
+        final int N_BIN = config.orientationBins;
+        GaussianImage gaussianImage = octaves.get(keyPoint.octave).gaussianImages.get(Util.getLocalGaussianImageId(keyPoint, config));
+        FloatImage plane = gaussianImage.plane;
+        GradientPlane gradient = gaussianImage.gradient; // 未缓存时为null，此时在采样时计算梯度
         int centerX = (int) Math.round(keyPoint.pt.x), centerY = (int) Math.round(keyPoint.pt.y);
         float localScale = Util.global2LocalScale(keyPoint.size, keyPoint.octave);
         float sigma = 1.5f * localScale; // 高斯加权的标准差
@@ -48,16 +100,23 @@ public class OrientationComputer {
 
         for (int i = -radius; i <= radius; i++) {
             int x = centerX + i;
-            if (x < 1 || x >= gaussianImage.image.width() - 1) continue; // 计算梯度需要左右两个像素的值，因此边界检查需要留出1的边距
+            if (x < 1 || x >= plane.width - 1) continue; // 计算梯度需要左右两个像素的值，因此边界检查需要留出1的边距
             for (int j = -radius; j <= radius; j++) {
                 int y = centerY + j;
-                if (y < 1 || y >= gaussianImage.image.height() - 1) continue;
+                if (y < 1 || y >= plane.height - 1) continue;
 
-                // 计算采样点的梯度和朝向
-                float dx = (float) (gaussianImage.image.get(y, x + 1)[0] - gaussianImage.image.get(y, x - 1)[0]);
-                float dy = (float) (gaussianImage.image.get(y + 1, x)[0] - gaussianImage.image.get(y - 1, x)[0]);
-                float magnitude = (float) (Math.sqrt(Math.pow(dx, 2) + Math.pow(dy, 2)));
-                float theta = (float) (Math.atan2(dy, dx) + Math.PI);
+                // 计算采样点的梯度和朝向。缓存中的幅值为中心差分的一半，直方图整体缩放不影响朝向的确定
+                int idx = plane.index(x, y);
+                float magnitude, theta;
+                if (gradient != null) {
+                    magnitude = gradient.magnitude[idx];
+                    theta = gradient.angle[idx];
+                } else {
+                    float dx = plane.data[idx + 1] - plane.data[idx - 1];
+                    float dy = plane.data[idx + plane.stride] - plane.data[idx - plane.stride];
+                    magnitude = (float) (Math.sqrt(Math.pow(dx, 2) + Math.pow(dy, 2)));
+                    theta = (float) (Math.atan2(dy, dx) + Math.PI);
+                }
 
                 // 将加权幅值加入合适的bin
                 int bin = (int) Math.floor(theta / binWidth);
@@ -77,13 +136,14 @@ public class OrientationComputer {
      * @param hist 朝向直方图
      * @return 关键点的朝向
      */
-    private static ArrayList<Float> computeOrientations(FloatMatrix hist) {
+    private ArrayList<Float> computeOrientations(FloatMatrix hist) {
+        final int N_BIN = config.orientationBins;
         // 寻找最大值
         float maxVal = hist.get(0);
         for (int i = 1; i < hist.length; i++) {
             if (hist.get(i) > maxVal) maxVal = hist.get(i);
         }
-        float threshold = PEAK_RATIO * maxVal;
+        float threshold = config.peakRatio * maxVal;
         float binWidth = 360f / N_BIN;
 
         // 确定感兴趣的朝向，并插值获得更精确的位置
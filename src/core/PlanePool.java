@@ -0,0 +1,157 @@
+package core;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import static org.opencv.core.CvType.*;
+
+/**
+ * 按尺寸复用的图像缓冲区池，包括图像平面（Java堆内存）和单通道float类型的Mat（本地内存）。构建尺度空间时从池中取出缓冲区，
+ * 处理结束后将octave中的缓冲区归还，下一次处理同样尺寸的图像时即可复用，而不必重新分配整个尺度空间。
+ * 图像平面和Mat共用同一个字节数上限：池中保留的图像平面与Mat的字节数之和不超过构造时给定的上限，两者不分别计数。
+ * 归还时若超出上限，图像平面交由垃圾回收器回收，Mat立即释放本地内存。
+ * 取出的缓冲区内容是未定义的，调用者必须覆盖全部像素。
+ * 各方法是同步的，因此流水线的不同阶段可以共用同一个池（如SIFT.describe()在另一线程中为梯度平面取出缓冲区）；为避免竞争，不相关的线程仍应使用独立的实例。
+ */
+class PlanePool {
+    static final PlanePool NONE = new PlanePool(0); // 不保留任何缓冲区的池，每次取出都会分配新的缓冲区，归还的Mat立即释放；由于不修改内部状态，可以在多个线程间共享
+
+    private final HashMap<Long, ArrayDeque<FloatImage>> freePlanes = new HashMap<>();
+    private final HashMap<Long, ArrayDeque<Mat>> freeMats = new HashMap<>();
+    private final long maxBytes;
+    private long pooledBytes = 0;
+
+    /**
+     * 构造函数
+     *
+     * @param maxBytes 池中保留的图像平面与Mat的总字节数上限（Java堆内存与本地内存合计）
+     */
+    PlanePool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static long key(int width, int height) {
+        return (long) width << 32 | height;
+    }
+
+    /**
+     * 取出一张尺寸为width × height、stride等于width的图像平面。池中没有合适的图像平面时将分配新的图像平面。
+     *
+     * @param width  宽度
+     * @param height 高度
+     * @return 内容未定义的图像平面
+     */
+    synchronized FloatImage acquire(int width, int height) {
+        if (maxBytes > 0) {
+            ArrayDeque<FloatImage> planes = freePlanes.get(key(width, height));
+            if (planes != null && !planes.isEmpty()) {
+                FloatImage plane = planes.pop();
+                pooledBytes -= (long) Float.BYTES * plane.data.length;
+                return plane;
+            }
+        }
+        return new FloatImage(width, height);
+    }
+
+    /**
+     * 取出一个尺寸为width × height的单通道float类型的Mat。池中没有合适的Mat时将分配新的Mat。
+     * 将取出的Mat作为OpenCV函数的输出时，只要输出的尺寸与类型与之相同，OpenCV就直接写入而不重新分配。
+     *
+     * @param width  宽度
+     * @param height 高度
+     * @return 内容未定义的Mat
+     */
+    synchronized Mat acquireMat(int width, int height) {
+        if (maxBytes > 0) {
+            ArrayDeque<Mat> mats = freeMats.get(key(width, height));
+            if (mats != null && !mats.isEmpty()) {
+                Mat mat = mats.pop();
+                pooledBytes -= (long) Float.BYTES * width * height;
+                return mat;
+            }
+        }
+        return new Mat(height, width, CV_32F);
+    }
+
+    /**
+     * 从单通道float类型的Mat中复制全部像素到池中取出的图像平面，与FloatImage.fromMat()相同。
+     *
+     * @param mat 单通道float类型的图像
+     * @return 与mat内容相同的图像平面
+     * @throws IllegalArgumentException 如果mat不是单通道float类型的图像，将抛出此异常。
+     */
+    FloatImage fromMat(Mat mat) {
+        if (mat.type() != CV_32F)
+            throw new IllegalArgumentException("mat must be a single-channel floating-point image.");
+        FloatImage plane = acquire(mat.width(), mat.height());
+        mat.get(0, 0, plane.data);
+        return plane;
+    }
+
+    /**
+     * 归还一张图像平面。只接受紧密存储（stride等于width）的图像平面；池已满时图像平面将被丢弃。
+     *
+     * @param plane 不再使用的图像平面
+     */
+    synchronized void recycle(FloatImage plane) {
+        long bytes = (long) Float.BYTES * plane.data.length;
+        if (plane.stride != plane.width || plane.data.length != plane.width * plane.height || pooledBytes + bytes > maxBytes)
+            return;
+        freePlanes.computeIfAbsent(key(plane.width, plane.height), k -> new ArrayDeque<>()).push(plane);
+        pooledBytes += bytes;
+    }
+
+    /**
+     * 归还一个Mat。只接受连续存储的单通道float类型的Mat；不被接受的Mat（包括池已满时）将立即释放本地内存。
+     *
+     * @param mat 不再使用的Mat
+     */
+    synchronized void recycle(Mat mat) {
+        long bytes = Float.BYTES * mat.total();
+        if (mat.type() != CV_32F || !mat.isContinuous() || mat.empty() || pooledBytes + bytes > maxBytes) {
+            mat.release();
+            return;
+        }
+        freeMats.computeIfAbsent(key(mat.cols(), mat.rows()), k -> new ArrayDeque<>()).push(mat);
+        pooledBytes += bytes;
+    }
+
+    /**
+     * 归还一张高斯图像的图像平面、Mat及梯度平面（如果存在）
+     *
+     * @param gaussianImage 不再使用的高斯图像
+     */
+    synchronized void recycle(GaussianImage gaussianImage) {
+        recycle(gaussianImage.plane);
+        if (gaussianImage.image != null) recycle(gaussianImage.image);
+        if (gaussianImage.gradient != null) {
+            recycle(gaussianImage.gradient.magnitudePlane);
+            recycle(gaussianImage.gradient.anglePlane);
+            gaussianImage.gradient = null;
+        }
+    }
+
+    /**
+     * 清空池：立即释放池中全部Mat的本地内存，图像平面交由垃圾回收器回收。
+     */
+    synchronized void clear() {
+        if (maxBytes == 0) return; // 不保留任何缓冲区的池无需清空
+        for (ArrayDeque<Mat> mats : freeMats.values()) {
+            for (Mat mat : mats) mat.release();
+        }
+        freeMats.clear();
+        freePlanes.clear();
+        pooledBytes = 0;
+    }
+
+    /**
+     * 返回池中保留的缓冲区的总字节数
+     *
+     * @return 池中保留的缓冲区的总字节数
+     */
+    synchronized long pooledBytes() {
+        return pooledBytes;
+    }
+}
@@ -6,43 +6,65 @@ import org.opencv.core.Mat;
 import flib.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.TimeoutException;
 
 import static org.opencv.core.CvType.*;
 
-public class SIFT {
+public class SIFT implements AutoCloseable {
 
     public final Mat grayFloat;                             // 浮点类型的灰度图像
+    public final SiftConfig config;                         // 参数配置
     private ArrayList<Octave> octaves;
-    private ArrayList<KeyPoint> keyPoints;                  // 包含完整信息（位置、尺度、朝向、响应、octave序号）的关键点
-    private ArrayList<FloatMatrix> descriptors;             // 描述子列表
-    private ArrayList<KeyPointX> keyPointsWithDescriptor;   // 带描述子的关键点
+    private KeyPointSet keyPointSet;                        // 带描述子的关键点，以结构数组形式存储
+    private ArrayList<KeyPoint> keyPoints;                  // 由keyPointSet按需转换得到的关键点列表
+    private ArrayList<FloatMatrix> descriptors;             // 由keyPointSet按需转换得到的描述子列表
+    private ArrayList<KeyPointX> keyPointsWithDescriptor;   // 由keyPointSet按需转换得到的带描述子的关键点
+    private SiftMetrics metrics;                            // 运行过程的统计数据
+    private final PlanePool planePool;                      // 尺度空间的缓冲区从中取出，close()时归还
 
     public SIFT(Mat grayFloat) {
+        this(grayFloat, SiftConfig.DEFAULT);
+    }
+
+    public SIFT(Mat grayFloat, SiftConfig config) {
+        this(grayFloat, config, PlanePool.NONE);
+    }
+
+    /**
+     * 构造函数。尺度空间的缓冲区从planePool中取出，供SiftExtractor在多次运行之间复用。
+     *
+     * @param grayFloat 浮点类型的灰度图像
+     * @param config    参数配置
+     * @param planePool 图像平面池
+     */
+    SIFT(Mat grayFloat, SiftConfig config, PlanePool planePool) {
         if (grayFloat.type() != CV_32F) {
             throw new IllegalArgumentException("grayFloat must be a floating-point gray image.");
         }
         this.grayFloat = grayFloat;
+        this.config = config;
+        this.planePool = planePool;
     }
 
+    /**
+     * 运行SIFT，返回带描述子的关键点列表。
+     *
+     * @return 带有完整信息（位置、尺度、朝向、响应、octave序号）以及描述子的关键点的列表；运行出错时返回null。
+     */
     public ArrayList<KeyPointX> run() {
-        try {
-            ExtremaDetector extremaDetector = new ExtremaDetector();
-            ArrayList<KeyPoint> coarseKeyPoints = extremaDetector.run(grayFloat);
-            octaves = extremaDetector.octaves;
-
-            KeyPointLocator locator = new KeyPointLocator();
-            ArrayList<KeyPoint> keyPoints = locator.run(coarseKeyPoints, octaves);
-
-            OrientationComputer orientationComputer = new OrientationComputer();
-            ArrayList<KeyPoint> keyPointsWithOrientation = orientationComputer.run(keyPoints, octaves);
-            this.keyPoints = keyPointsWithOrientation;
-
-            DescriptorGenerator descriptorGenerator = new DescriptorGenerator();
-            descriptors = descriptorGenerator.run(keyPointsWithOrientation, octaves);
-            keyPointsWithDescriptor = descriptorGenerator.keyPointsWithDescriptor;
+        return runPacked() == null ? null : getKeyPointsWithDescriptor();
+    }
 
-            return keyPointsWithDescriptor;
+    /**
+     * 运行SIFT，以结构数组的形式返回结果。与run()不同，此方法不为每个关键点创建KeyPoint、KeyPointX和FloatMatrix对象；
+     * 之后调用getKeyPoints()等方法时，才按需转换为对象形式。
+     *
+     * @return 带描述子的关键点集合；运行出错时返回null。
+     */
+    public KeyPointSet runPacked() {
+        try {
+            return runChecked();
         } catch (InterruptedException ex) {
             Log.error("Internal error raised when detecting scale-space extrema.");
             ex.printStackTrace();
@@ -56,7 +78,253 @@ public class SIFT {
     }
 
     /**
-     * 返回在输入图像上建立的octaves。
+     * 运行SIFT，与runPacked()相同，但运行出错时抛出异常而不是返回null。
+     *
+     * @return 带描述子的关键点集合
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    KeyPointSet runChecked() throws InterruptedException, TimeoutException {
+        close(); // 再次运行时，先释放上一次运行保留的octave
+        keyPointSet = null;
+        keyPoints = null;
+        descriptors = null;
+        keyPointsWithDescriptor = null;
+        SiftMetrics metrics = new SiftMetrics();
+        long startTime = System.nanoTime();
+        if (config.octaveAtATime) runOctaveByOctave(metrics);
+        else runAllOctaves(metrics);
+        metrics.totalNanos = System.nanoTime() - startTime;
+        this.metrics = metrics;
+        return keyPointSet;
+    }
+
+    /**
+     * 释放运行后保留的全部octave：由SiftExtractor创建时，缓冲区归还到其工作区；否则Mat的本地内存立即释放，而不必等待终结。
+     * 之后getOctaves()将返回空列表，已得到的关键点和描述子不受影响。
+     */
+    @Override
+    public void close() {
+        if (octaves == null) return;
+        for (Octave octave : octaves) {
+            if (octave != null) octave.close();
+        }
+        octaves = new ArrayList<>();
+    }
+
+    /**
+     * 一次性构建全部octave，再依次在全部octave上运行各阶段。octave在运行结束后仍被保留，可通过getOctaves()获取。
+     *
+     * @param metrics 用于记录统计数据
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    private void runAllOctaves(SiftMetrics metrics) throws InterruptedException, TimeoutException {
+        describe(detect(metrics), metrics);
+    }
+
+    /**
+     * 一次性构建全部octave并检测极值点，即runAllOctaves()的前半部分。构建好的octave保留在此对象中，供describe()使用。
+     *
+     * @param metrics 用于记录统计数据
+     * @return 候选点
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    CandidateBuffer detect(SiftMetrics metrics) throws InterruptedException, TimeoutException {
+        ExtremaDetector extremaDetector = new ExtremaDetector(config, planePool);
+        CandidateBuffer candidates = extremaDetector.runCandidates(grayFloat);
+        octaves = extremaDetector.octaves;
+        metrics.pyramidNanos = extremaDetector.pyramidNanos;
+        metrics.extremaDetectionNanos = extremaDetector.detectionNanos;
+        for (Octave octave : octaves) {
+            if (octave == null) continue; // 序号小于第一个octave的位置
+            metrics.nOctaves++;
+            metrics.pyramidBytes += octave.byteCount();
+        }
+        metrics.peakPyramidBytes = metrics.pyramidBytes;
+        metrics.nCoarseExtrema = candidates.size();
+        return candidates;
+    }
+
+    /**
+     * 在detect()构建的octave上完成关键点定位、数量筛选、朝向计算和描述子生成，即runAllOctaves()的后半部分。结果可通过getKeyPointSet()获取。
+     * 可以在调用detect()之外的线程中运行；开启config.gradientCache时，梯度平面从同步的缓冲区池中取出。
+     *
+     * @param candidates detect()返回的候选点
+     * @param metrics    用于记录统计数据
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    void describe(CandidateBuffer candidates, SiftMetrics metrics) throws InterruptedException, TimeoutException {
+        long stageStartTime = System.nanoTime();
+        KeyPointLocator locator = new KeyPointLocator(config);
+        ArrayList<KeyPoint> localizedKeyPoints = locator.run(candidates, octaves);
+        // 只有数量上限内最强的关键点进入朝向计算和描述子生成
+        ArrayList<KeyPoint> selectedKeyPoints = KeyPointSelector.select(localizedKeyPoints, config, grayFloat.width(), grayFloat.height());
+        metrics.localizationNanos = System.nanoTime() - stageStartTime;
+        metrics.nRejectedOutOfBound = locator.nOutOfBound;
+        metrics.nRejectedNotConverged = locator.nNotConverged;
+        metrics.nRejectedLowContrast = locator.nLowContrast;
+        metrics.nRejectedOnEdge = locator.nOnEdge;
+        metrics.nLocalized = localizedKeyPoints.size();
+        metrics.nDroppedByBudget = localizedKeyPoints.size() - selectedKeyPoints.size();
+
+        stageStartTime = System.nanoTime();
+        OrientationComputer orientationComputer = new OrientationComputer(config);
+        ArrayList<KeyPoint> keyPointsWithOrientation = orientationComputer.run(selectedKeyPoints, octaves);
+        metrics.orientationNanos = System.nanoTime() - stageStartTime;
+        metrics.nOrientationDuplicates = keyPointsWithOrientation.size() - selectedKeyPoints.size();
+
+        stageStartTime = System.nanoTime();
+        DescriptorGenerator descriptorGenerator = new DescriptorGenerator(config);
+        keyPointSet = descriptorGenerator.runPacked(keyPointsWithOrientation, octaves);
+        metrics.descriptorNanos = System.nanoTime() - stageStartTime;
+        metrics.nDescriptors = keyPointSet.size();
+    }
+
+    /**
+     * 逐octave运行：构建一个octave后，立即在其上完成极值检测、关键点定位、朝向计算和描述子生成，然后释放其全部图像，再构建下一个octave。
+     * 任一时刻只保留一个octave（以及下一个octave的栈底图像），尺度空间的峰值内存约为一个octave的大小。
+     * 输出的关键点顺序与一次性构建全部octave时相同。运行结束后octave已被释放，getOctaves()将返回空列表。
+     * <p>
+     * 设置了关键点数量上限（config.maxFeatures）时，每个octave的关键点与此前各octave保留下来的关键点一起筛选，
+     * 只有新入选的关键点进入朝向计算和描述子生成；此前保留、但被更强的关键点挤出的关键点，其结果在运行结束时移除。
+     * 因此每个octave中计算描述子的关键点不超过上限，最终结果与一次性构建全部octave时相同。
+     *
+     * @param metrics 用于记录统计数据
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    private void runOctaveByOctave(SiftMetrics metrics) throws InterruptedException, TimeoutException {
+        long stageStartTime = System.nanoTime();
+        Mat baseImage = ExtremaDetector.prepareBaseImage(grayFloat, config, planePool);
+        GaussianImage bottomImage = ExtremaDetector.baseGaussianImage(baseImage, config, planePool);
+        if (config.incrementalPyramid) planePool.recycle(baseImage); // 增量模式只使用图像平面
+        metrics.pyramidNanos += System.nanoTime() - stageStartTime;
+
+        keyPointSet = new KeyPointSet(config.descriptorLength);
+        // 设置了数量上限时，每个定位后的关键点按出现顺序获得一个编号；编号保存在以下数组中，而不写入关键点的class_id
+        int[] orientedTags = new int[16]; // 与keyPointSet一一对应，为所属关键点的编号
+        ArrayList<Octave> octaveSlots = new ArrayList<>(); // 各阶段按关键点的octave序号访问octave，已释放或未构建的octave以null占位
+        ArrayList<KeyPoint> budgetKeyPoints = new ArrayList<>(); // 设置了数量上限时，目前为止入选的关键点
+        int[] budgetTags = new int[0]; // 与budgetKeyPoints一一对应的编号
+        int nTags = 0;
+        for (int i = 0; i < config.baseOctaveNo(); i++) octaveSlots.add(null);
+        Octave octave = null;
+        try {
+            for (int octaveNo = config.baseOctaveNo(); ExtremaDetector.isLargeEnough(bottomImage, config); octaveNo++) {
+                stageStartTime = System.nanoTime();
+                octave = ExtremaDetector.buildOctave(bottomImage, config, planePool);
+                bottomImage = null; // 栈底图像此后由octave持有
+                bottomImage = ExtremaDetector.nextBottomImage(octave, config, planePool);
+                octaveSlots.add(octave);
+                metrics.pyramidNanos += System.nanoTime() - stageStartTime;
+                metrics.nOctaves++;
+                long octaveBytes = octave.byteCount();
+                metrics.pyramidBytes += octaveBytes;
+                metrics.peakPyramidBytes = Math.max(metrics.peakPyramidBytes, octaveBytes);
+
+                stageStartTime = System.nanoTime();
+                CandidateBuffer coarseCandidates = ExtremaDetector.detect(octave, octaveNo, config);
+                metrics.extremaDetectionNanos += System.nanoTime() - stageStartTime;
+                metrics.nCoarseExtrema += coarseCandidates.size();
+
+                stageStartTime = System.nanoTime();
+                KeyPointLocator locator = new KeyPointLocator(config);
+                ArrayList<KeyPoint> localizedKeyPoints = locator.run(coarseCandidates, octaveSlots);
+                metrics.localizationNanos += System.nanoTime() - stageStartTime;
+                metrics.nRejectedOutOfBound += locator.nOutOfBound;
+                metrics.nRejectedNotConverged += locator.nNotConverged;
+                metrics.nRejectedLowContrast += locator.nLowContrast;
+                metrics.nRejectedOnEdge += locator.nOnEdge;
+                metrics.nLocalized += localizedKeyPoints.size();
+                int[] localizedTags = null; // 与localizedKeyPoints一一对应的编号
+                if (config.maxFeatures > 0) {
+                    stageStartTime = System.nanoTime();
+                    int nPrevious = budgetKeyPoints.size();
+                    ArrayList<KeyPoint> candidates = budgetKeyPoints;
+                    candidates.addAll(localizedKeyPoints);
+                    int[] candidateTags = Arrays.copyOf(budgetTags, candidates.size());
+                    for (int i = nPrevious; i < candidates.size(); i++) candidateTags[i] = nTags++;
+                    int[] selected = KeyPointSelector.select(candidates, config.maxFeatures, config.bucketGridSize,
+                            grayFloat.width(), grayFloat.height());
+                    budgetKeyPoints = new ArrayList<>(selected.length);
+                    budgetTags = new int[selected.length];
+                    localizedKeyPoints = new ArrayList<>();
+                    localizedTags = new int[selected.length];
+                    int nNew = 0;
+                    for (int r = 0; r < selected.length; r++) {
+                        int i = selected[r];
+                        budgetKeyPoints.add(candidates.get(i));
+                        budgetTags[r] = candidateTags[i];
+                        if (i >= nPrevious) {
+                            localizedKeyPoints.add(candidates.get(i));
+                            localizedTags[nNew++] = candidateTags[i];
+                        }
+                    }
+                    metrics.localizationNanos += System.nanoTime() - stageStartTime;
+                }
+
+                stageStartTime = System.nanoTime();
+                ArrayList<KeyPoint>[] orientationResults = new OrientationComputer(config).runPerKeyPoint(localizedKeyPoints, octaveSlots, config.parallel);
+                ArrayList<KeyPoint> keyPointsWithOrientation = new ArrayList<>();
+                int nOriented = keyPointSet.size(); // 带朝向的关键点在keyPointSet中的位置
+                for (int k = 0; k < orientationResults.length; k++) {
+                    for (KeyPoint keyPoint : orientationResults[k]) {
+                        keyPointsWithOrientation.add(keyPoint);
+                        if (localizedTags != null) {
+                            if (nOriented == orientedTags.length) orientedTags = Arrays.copyOf(orientedTags, nOriented * 2);
+                            orientedTags[nOriented] = localizedTags[k];
+                        }
+                        nOriented++;
+                    }
+                }
+                metrics.orientationNanos += System.nanoTime() - stageStartTime;
+                metrics.nOrientationDuplicates += keyPointsWithOrientation.size() - localizedKeyPoints.size();
+
+                stageStartTime = System.nanoTime();
+                keyPointSet.addAll(new DescriptorGenerator(config).runPacked(keyPointsWithOrientation, octaveSlots));
+                metrics.descriptorNanos += System.nanoTime() - stageStartTime;
+
+                octave.close();
+                octave = null;
+                octaveSlots.set(octaveNo, null);
+            }
+        } finally {
+            // 出错时归还正在处理的octave，以及尚未被octave持有的栈底图像；正常结束时bottomImage为最后一张过小的栈底图像
+            if (octave != null) octave.close();
+            if (bottomImage != null) planePool.recycle(bottomImage);
+        }
+        if (config.maxFeatures > 0) {
+            discardOverBudget(orientedTags, budgetTags, nTags);
+            metrics.nDroppedByBudget = metrics.nLocalized - budgetKeyPoints.size();
+            metrics.nOrientationDuplicates = keyPointSet.size() - budgetKeyPoints.size();
+        }
+        metrics.nDescriptors = keyPointSet.size();
+        octaves = new ArrayList<>();
+    }
+
+    /**
+     * 逐octave运行结束时，从keyPointSet中移除由后来被挤出数量上限的关键点得到的结果。
+     *
+     * @param orientedTags 前keyPointSet.size()个元素与keyPointSet一一对应，为所属关键点的编号
+     * @param budgetTags   最终入选的关键点的编号
+     * @param nTags        编号的总数
+     */
+    private void discardOverBudget(int[] orientedTags, int[] budgetTags, int nTags) {
+        boolean[] kept = new boolean[nTags];
+        for (int tag : budgetTags) kept[tag] = true;
+        int[] indices = new int[keyPointSet.size()];
+        int nKept = 0;
+        for (int i = 0; i < keyPointSet.size(); i++) {
+            if (kept[orientedTags[i]]) indices[nKept++] = i;
+        }
+        keyPointSet = keyPointSet.subset(Arrays.copyOf(indices, nKept));
+    }
+
+    /**
+     * 返回在输入图像上建立的octaves。列表的下标为octave序号，config.firstOctave大于-1时，序号小于第一个octave的位置为null。逐octave运行（config.octaveAtATime）时，octave在处理后即被释放，将返回空列表。
      *
      * @return 在输入图像上建立的octaves。
      * @throws EarlyCallException 应先调用run()以准备数据。如果在调用run()之前调用此方法，将抛出此异常。
@@ -74,8 +342,7 @@ public class SIFT {
      * @throws EarlyCallException 应先调用run()以准备数据。如果在调用run()之前调用此方法，将抛出此异常。
      */
     public ArrayList<KeyPoint> getKeyPoints() {
-        if (keyPoints == null)
-            throw new EarlyCallException("Getter called before data have been prepared. Call run() first.");
+        if (keyPoints == null) keyPoints = getKeyPointSet().toKeyPoints();
         return keyPoints;
     }
 
@@ -86,8 +353,7 @@ public class SIFT {
      * @throws EarlyCallException 应先调用run()以准备数据。如果在调用run()之前调用此方法，将抛出此异常。
      */
     public ArrayList<FloatMatrix> getDescriptors() {
-        if (descriptors == null)
-            throw new EarlyCallException("Getter called before data have been prepared. Call run() first.");
+        if (descriptors == null) descriptors = getKeyPointSet().toDescriptorMatrices();
         return descriptors;
     }
 
@@ -98,9 +364,32 @@ public class SIFT {
      * @throws EarlyCallException 应先调用run()以准备数据。如果在调用run()之前调用此方法，将抛出此异常。
      */
     public ArrayList<KeyPointX> getKeyPointsWithDescriptor() {
-        if (keyPointsWithDescriptor == null)
-            throw new EarlyCallException("Getter called before data have been prepared. Call run() first.");
+        if (keyPointsWithDescriptor == null) keyPointsWithDescriptor = getKeyPointSet().toKeyPointXes();
         return keyPointsWithDescriptor;
     }
 
+    /**
+     * 返回以结构数组形式存储的带描述子的关键点，不发生转换。
+     *
+     * @return 带描述子的关键点集合
+     * @throws EarlyCallException 应先调用run()或runPacked()以准备数据。如果在此之前调用此方法，将抛出此异常。
+     */
+    public KeyPointSet getKeyPointSet() {
+        if (keyPointSet == null)
+            throw new EarlyCallException("Getter called before data have been prepared. Call run() first.");
+        return keyPointSet;
+    }
+
+    /**
+     * 返回运行过程的统计数据，包括各阶段的耗时、各个筛选步骤后的关键点数量，以及尺度空间的规模。
+     *
+     * @return 运行过程的统计数据
+     * @throws EarlyCallException 应先调用run()以准备数据。如果在调用run()之前调用此方法，将抛出此异常。
+     */
+    public SiftMetrics getMetrics() {
+        if (metrics == null)
+            throw new EarlyCallException("Getter called before data have been prepared. Call run() first.");
+        return metrics;
+    }
+
 }
@@ -0,0 +1,116 @@
+package core;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 在图像平面上进行的可分离高斯滤波，用于以增量方式构建octave。
+ * 一维卷积核由SiftConfig在创建时计算并缓存；竖直方向的卷积与DoG图像的相减在同一次遍历中完成。
+ * 边界处理方式与OpenCV的默认方式（BORDER_REFLECT_101）相同。
+ */
+public class SeparableGaussian {
+    private static final double KERNEL_RADIUS_IN_SIGMA = 4; // 卷积核半径与标准差之比，与OpenCV对float图像的取法相同
+
+    /**
+     * 返回增量构建octave所需的一维卷积核。第i - 1个卷积核（i = 1, 2, ..., s + 2）的标准差为sqrt(σ_i^2 - σ_{i-1}^2)，
+     * 其中σ_i = sigma * k^i，k = 2^(1/s)；对标准差为σ_{i-1}的高斯图像使用该卷积核滤波，即可得到标准差为σ_i的高斯图像。
+     * 卷积核只存储中心及其一侧：kernel[0]为中心权重，kernel[j]为距中心j处的权重。
+     *
+     * @param s     octave中的间隙数
+     * @param sigma octave中栈底图像的标准差
+     * @return s + 2个一维卷积核
+     */
+    public static float[][] incrementalKernels(int s, double sigma) {
+        double k = Math.pow(2, 1. / s);
+        float[][] kernels = new float[s + 2][];
+        double prevSigma = sigma;
+        for (int i = 1; i <= s + 2; i++) {
+            double currSigma = prevSigma * k;
+            kernels[i - 1] = kernel(Math.sqrt(currSigma * currSigma - prevSigma * prevSigma));
+            prevSigma = currSigma;
+        }
+        return kernels;
+    }
+
+    /**
+     * 计算归一化的一维高斯卷积核的中心及一侧
+     *
+     * @param sigma 标准差
+     * @return 长度为半径 + 1的卷积核，kernel[j]为距中心j处的权重
+     */
+    static float[] kernel(double sigma) {
+        int radius = Math.max(1, (int) Math.ceil(KERNEL_RADIUS_IN_SIGMA * sigma));
+        double[] weights = new double[radius + 1];
+        double sum = 0;
+        for (int j = 0; j <= radius; j++) {
+            weights[j] = Math.exp(-j * j / (2 * sigma * sigma));
+            sum += j == 0 ? weights[j] : 2 * weights[j];
+        }
+        float[] kernel = new float[radius + 1];
+        for (int j = 0; j <= radius; j++) kernel[j] = (float) (weights[j] / sum);
+        return kernel;
+    }
+
+    /**
+     * 对src进行可分离高斯滤波，结果写入dst，同时计算DoG图像dog = src - dst。各行在SiftExecutor的共享线程池中并行处理。
+     * src、tmp、dst和dog的尺寸必须相同。
+     *
+     * @param src    输入图像
+     * @param kernel 一维卷积核的中心及一侧
+     * @param tmp    存放水平方向卷积结果的暂存图像，原有内容将被覆盖
+     * @param dst    输出的高斯图像
+     * @param dog    输出的DoG图像；为null时不计算
+     * @throws InterruptedException 如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public static void blur(FloatImage src, float[] kernel, FloatImage tmp, FloatImage dst, FloatImage dog) throws InterruptedException, TimeoutException {
+        int width = src.width, height = src.height, radius = kernel.length - 1;
+
+        // 水平方向
+        SiftExecutor.parallelFor(0, height, (yStart, yEnd) -> {
+            for (int y = yStart; y < yEnd; y++) {
+                int srcRow = y * src.stride, tmpRow = y * tmp.stride;
+                for (int x = 0; x < width; x++) {
+                    float sum = kernel[0] * src.data[srcRow + x];
+                    if (x >= radius && x < width - radius) {
+                        for (int j = 1; j <= radius; j++)
+                            sum += kernel[j] * (src.data[srcRow + x - j] + src.data[srcRow + x + j]);
+                    } else {
+                        for (int j = 1; j <= radius; j++)
+                            sum += kernel[j] * (src.data[srcRow + reflect(x - j, width)] + src.data[srcRow + reflect(x + j, width)]);
+                    }
+                    tmp.data[tmpRow + x] = sum;
+                }
+            }
+        });
+
+        // 竖直方向，逐行累加以便最内层循环被向量化；同时计算DoG图像
+        SiftExecutor.parallelFor(0, height, (yStart, yEnd) -> {
+            for (int y = yStart; y < yEnd; y++) {
+                int dstRow = y * dst.stride, centerRow = y * tmp.stride;
+                for (int x = 0; x < width; x++) dst.data[dstRow + x] = kernel[0] * tmp.data[centerRow + x];
+                for (int j = 1; j <= radius; j++) {
+                    int upRow = reflect(y - j, height) * tmp.stride, downRow = reflect(y + j, height) * tmp.stride;
+                    float weight = kernel[j];
+                    for (int x = 0; x < width; x++)
+                        dst.data[dstRow + x] += weight * (tmp.data[upRow + x] + tmp.data[downRow + x]);
+                }
+                if (dog != null) {
+                    int srcRow = y * src.stride, dogRow = y * dog.stride;
+                    for (int x = 0; x < width; x++) dog.data[dogRow + x] = src.data[srcRow + x] - dst.data[dstRow + x];
+                }
+            }
+        });
+    }
+
+    /**
+     * 以BORDER_REFLECT_101方式将越界的坐标映射回[0, len)，例如-1映射为1，len映射为len - 2。
+     */
+    private static int reflect(int i, int len) {
+        if (len == 1) return 0;
+        while (i < 0 || i >= len) {
+            if (i < 0) i = -i;
+            if (i >= len) i = 2 * len - 2 - i;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,256 @@
+package core;
+
+/**
+ * SIFT的参数配置，创建后不可修改。每个SIFT实例及其各阶段都使用构造时传入的配置，因此同一进程中可以同时以不同的配置运行SIFT，
+ * 例如快速的低精度配置与高精度配置。由参数决定的预计算表（如增量构建octave使用的高斯卷积核）在配置创建时计算一次，随配置缓存。
+ * <p>
+ * 配置通过Builder创建：
+ * <pre>
+ * SiftConfig config = new SiftConfig.Builder().s(4).contrastThreshold(0.04f).build();
+ * </pre>
+ */
+public final class SiftConfig {
+    public static final SiftConfig DEFAULT = new Builder().build(); // 默认配置，与[Lowe 04]中的参数相同
+
+    // 尺度空间
+    public final float sigma;                   // octave中栈底图像的sigma
+    public final int s;                         // octave中高斯图像的interval数量
+    public final int firstOctave;               // 尺度空间的第一个octave：-1为放大2倍的输入图像，0为输入图像，1为缩小一半的输入图像
+    public final int minSideLen;                // octave栈底图像短边的最短长度
+    public final boolean incrementalPyramid;    // 是否以增量方式构建尺度空间（可分离滤波，DoG图像在同一次遍历中计算），默认关闭，使用基于Mat的原始实现。两者的检测结果不同：原始实现对栈底图像以k^i·σ滤波，第i层的实际尺度为sqrt(σ^2 + (k^i·σ)^2)，增量实现的第i层恰为k^i·σ（[Lowe 04]的定义），开启后关键点和描述子都会改变
+    public final boolean pipelinedPyramid;      // 是否在构建尺度空间的同时检测极值点：三张相邻的DoG图像就绪后立即扫描，扫描与后续图像及octave的构建重叠；仅在parallel开启且不逐octave运行时生效
+    public final boolean octaveAtATime;         // 是否逐octave运行全部阶段，并在处理完每个octave后立即释放其图像，以限制大图像的峰值内存
+
+    // 关键点定位
+    public final float contrastThreshold;       // DoG响应低于此阈值的关键点将被剔除
+    public final float edgeRatio;               // 主曲率之比的上限，[Lowe 04]中使用10
+    public final int maxFeatures;               // 进入朝向计算的关键点数量上限，按|response|保留最强的关键点；0表示不限
+    public final int bucketGridSize;            // 按上限筛选时将图像划分为bucketGridSize × bucketGridSize的网格，使保留的关键点分布均匀；0或1表示不分网格
+
+    // 朝向计算
+    public final int orientationBins;           // 朝向直方图的堆栈数量
+    public final float peakRatio;               // 峰值比例；如果朝向直方图中某个堆栈的值大于最大值的一定比例，则会在此堆栈对应的方向上也建立一个关键点
+
+    // 描述子
+    public final boolean gradientCache;         // 是否为有关键点的高斯图像预先计算梯度幅值和朝向平面，供朝向计算和描述子生成共用；关键点密集时可显著减少sqrt和atan2的调用
+    public final int descriptorWidth;           // 一条轴上的子区域数量
+    public final int descriptorBins;            // 每张直方图的堆栈数量
+    public final float descriptorMaxValue;      // 描述子中元素允许的最大值
+
+    public final boolean parallel;              // 是否并行地进行关键点定位、朝向计算和描述子计算。默认关闭：原有的并行描述子计算曾实测更慢，需以StageBenchmark在目标机器上测得加速后再开启
+
+    // 由以上参数导出的值
+    public final float k;                       // 相邻高斯图像sigma的比例
+    public final float maxLocalScale;           // octave内高斯图像的最大尺度
+    public final float edgeCullingThreshold;    // 边缘剔除阈值，(r + 1)^2 / r
+    public final float prefilterThreshold;      // 极值检测的预筛选阈值，0.5 * contrastThreshold / s；|D|不大于此值的像素不做邻域比较
+    public final int descriptorLength;          // 描述子的长度
+    public final int histLength;                // 生成描述子时所需暂存区的长度
+
+    private final float[][] incrementalKernels; // 增量构建octave使用的一维高斯卷积核
+
+    private SiftConfig(Builder builder) {
+        sigma = builder.sigma;
+        s = builder.s;
+        firstOctave = builder.firstOctave;
+        minSideLen = builder.minSideLen;
+        incrementalPyramid = builder.incrementalPyramid;
+        pipelinedPyramid = builder.pipelinedPyramid;
+        octaveAtATime = builder.octaveAtATime;
+        contrastThreshold = builder.contrastThreshold;
+        edgeRatio = builder.edgeRatio;
+        maxFeatures = builder.maxFeatures;
+        bucketGridSize = builder.bucketGridSize;
+        orientationBins = builder.orientationBins;
+        peakRatio = builder.peakRatio;
+        gradientCache = builder.gradientCache;
+        descriptorWidth = builder.descriptorWidth;
+        descriptorBins = builder.descriptorBins;
+        descriptorMaxValue = builder.descriptorMaxValue;
+        parallel = builder.parallel;
+
+        k = (float) Math.pow(2, 1.0 / s);
+        maxLocalScale = 2 * sigma * k * k;
+        edgeCullingThreshold = (edgeRatio + 1) * (edgeRatio + 1) / edgeRatio;
+        prefilterThreshold = 0.5f * contrastThreshold / s;
+        descriptorLength = descriptorWidth * descriptorWidth * descriptorBins;
+        histLength = (descriptorWidth + 2) * (descriptorWidth + 2) * descriptorBins;
+        incrementalKernels = SeparableGaussian.incrementalKernels(s, sigma);
+    }
+
+    /**
+     * 返回第一个octave的序号，即firstOctave + 1。octave序号0对应放大2倍的输入图像，与firstOctave无关。
+     *
+     * @return 第一个octave的序号
+     */
+    public int baseOctaveNo() {
+        return firstOctave + 1;
+    }
+
+    /**
+     * 返回增量构建octave使用的s + 2个一维高斯卷积核，见SeparableGaussian.incrementalKernels()。返回的数组为缓存，调用者不得修改。
+     *
+     * @return 增量构建octave使用的一维高斯卷积核
+     */
+    float[][] incrementalKernels() {
+        return incrementalKernels;
+    }
+
+    /**
+     * 以此配置为基础创建Builder，用于派生只有少数参数不同的配置
+     *
+     * @return 各参数与此配置相同的Builder
+     */
+    public Builder toBuilder() {
+        return new Builder()
+                .sigma(sigma).s(s).firstOctave(firstOctave).minSideLen(minSideLen)
+                .incrementalPyramid(incrementalPyramid).pipelinedPyramid(pipelinedPyramid).octaveAtATime(octaveAtATime)
+                .contrastThreshold(contrastThreshold).edgeRatio(edgeRatio).maxFeatures(maxFeatures).bucketGridSize(bucketGridSize)
+                .orientationBins(orientationBins).peakRatio(peakRatio).gradientCache(gradientCache)
+                .descriptorWidth(descriptorWidth).descriptorBins(descriptorBins).descriptorMaxValue(descriptorMaxValue)
+                .parallel(parallel);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SiftConfig{sigma=%s, s=%d, firstOctave=%d, minSideLen=%d, incrementalPyramid=%b, pipelinedPyramid=%b, octaveAtATime=%b, " +
+                        "contrastThreshold=%s, edgeRatio=%s, maxFeatures=%d, bucketGridSize=%d, orientationBins=%d, peakRatio=%s, " +
+                        "gradientCache=%b, descriptorWidth=%d, descriptorBins=%d, descriptorMaxValue=%s, parallel=%b}",
+                sigma, s, firstOctave, minSideLen, incrementalPyramid, pipelinedPyramid, octaveAtATime, contrastThreshold, edgeRatio,
+                maxFeatures, bucketGridSize, orientationBins, peakRatio, gradientCache, descriptorWidth, descriptorBins, descriptorMaxValue, parallel);
+    }
+
+    public static class Builder {
+        private float sigma = 1.6f;
+        private int s = 3;
+        private int firstOctave = -1;
+        private int minSideLen = 64;
+        private boolean incrementalPyramid = false;
+        private boolean pipelinedPyramid = true;
+        private boolean octaveAtATime = false;
+        private float contrastThreshold = 0.03f;
+        private float edgeRatio = 10;
+        private int maxFeatures = 0;
+        private int bucketGridSize = 0;
+        private int orientationBins = 36;
+        private float peakRatio = 0.8f;
+        private boolean gradientCache = false;
+        private int descriptorWidth = 4;
+        private int descriptorBins = 8;
+        private float descriptorMaxValue = 0.2f;
+        private boolean parallel = false;
+
+        public Builder sigma(float sigma) {
+            this.sigma = sigma;
+            return this;
+        }
+
+        public Builder s(int s) {
+            this.s = s;
+            return this;
+        }
+
+        public Builder firstOctave(int firstOctave) {
+            this.firstOctave = firstOctave;
+            return this;
+        }
+
+        public Builder minSideLen(int minSideLen) {
+            this.minSideLen = minSideLen;
+            return this;
+        }
+
+        public Builder incrementalPyramid(boolean incrementalPyramid) {
+            this.incrementalPyramid = incrementalPyramid;
+            return this;
+        }
+
+        public Builder pipelinedPyramid(boolean pipelinedPyramid) {
+            this.pipelinedPyramid = pipelinedPyramid;
+            return this;
+        }
+
+        public Builder octaveAtATime(boolean octaveAtATime) {
+            this.octaveAtATime = octaveAtATime;
+            return this;
+        }
+
+        public Builder contrastThreshold(float contrastThreshold) {
+            this.contrastThreshold = contrastThreshold;
+            return this;
+        }
+
+        public Builder edgeRatio(float edgeRatio) {
+            this.edgeRatio = edgeRatio;
+            return this;
+        }
+
+        public Builder maxFeatures(int maxFeatures) {
+            this.maxFeatures = maxFeatures;
+            return this;
+        }
+
+        public Builder bucketGridSize(int bucketGridSize) {
+            this.bucketGridSize = bucketGridSize;
+            return this;
+        }
+
+        public Builder orientationBins(int orientationBins) {
+            this.orientationBins = orientationBins;
+            return this;
+        }
+
+        public Builder peakRatio(float peakRatio) {
+            this.peakRatio = peakRatio;
+            return this;
+        }
+
+        public Builder gradientCache(boolean gradientCache) {
+            this.gradientCache = gradientCache;
+            return this;
+        }
+
+        public Builder descriptorWidth(int descriptorWidth) {
+            this.descriptorWidth = descriptorWidth;
+            return this;
+        }
+
+        public Builder descriptorBins(int descriptorBins) {
+            this.descriptorBins = descriptorBins;
+            return this;
+        }
+
+        public Builder descriptorMaxValue(float descriptorMaxValue) {
+            this.descriptorMaxValue = descriptorMaxValue;
+            return this;
+        }
+
+        public Builder parallel(boolean parallel) {
+            this.parallel = parallel;
+            return this;
+        }
+
+        /**
+         * 检查参数并创建配置
+         *
+         * @return 配置
+         * @throws IllegalArgumentException 如果任一参数超出有效范围，将抛出此异常
+         */
+        public SiftConfig build() {
+            if (!(sigma > 0)) throw new IllegalArgumentException("sigma must be positive, got " + sigma + ".");
+            if (s < 1) throw new IllegalArgumentException("s must be positive, got " + s + ".");
+            if (firstOctave < -1 || firstOctave > 1)
+                throw new IllegalArgumentException("First octave must be one of -1, 0, 1, got " + firstOctave + ".");
+            if (minSideLen < 3) throw new IllegalArgumentException("minSideLen must be at least 3, got " + minSideLen + ".");
+            if (!(edgeRatio > 0)) throw new IllegalArgumentException("edgeRatio must be positive, got " + edgeRatio + ".");
+            if (maxFeatures < 0) throw new IllegalArgumentException("maxFeatures must not be negative, got " + maxFeatures + ".");
+            if (bucketGridSize < 0)
+                throw new IllegalArgumentException("bucketGridSize must not be negative, got " + bucketGridSize + ".");
+            if (orientationBins < 1)
+                throw new IllegalArgumentException("orientationBins must be positive, got " + orientationBins + ".");
+            if (descriptorWidth < 1 || descriptorBins < 1)
+                throw new IllegalArgumentException("Descriptor width and bins must be positive, got " + descriptorWidth + " and " + descriptorBins + ".");
+            return new SiftConfig(this);
+        }
+    }
+}
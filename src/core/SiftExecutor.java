@@ -0,0 +1,150 @@
+package core;
+
+import java.util.concurrent.*;
+
+/**
+ * SIFT各阶段共用的并行执行引擎。内部维护一个ForkJoinPool，并行任务按区间递归二分，空闲线程通过工作窃取分担负载。
+ * 所有阶段都向同一个线程池提交任务，因此不必为每张DoG图像或每张输入图像重新创建线程；
+ * 在同一进程中运行多个SIFT任务时，也可以通过setParallelism()限制占用的CPU总量。
+ */
+public class SiftExecutor {
+    private static final long TIMEOUT = 3600; // 等待并行任务完成的最长时间（秒）
+
+    private static volatile ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * 对区间[start, end)进行的操作
+     */
+    public interface RangeOperation {
+        void func(int start, int end);
+    }
+
+    /**
+     * 设置线程池的并行度。原有线程池会在已提交的任务完成后关闭。
+     *
+     * @param parallelism 并行度，即同时工作的线程数
+     * @throws IllegalArgumentException 如果parallelism小于1，将抛出此异常。
+     */
+    public static synchronized void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive, got " + parallelism + ".");
+        if (parallelism == pool.getParallelism()) return;
+        ForkJoinPool oldPool = pool;
+        pool = new ForkJoinPool(parallelism);
+        oldPool.shutdown();
+    }
+
+    public static int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public static ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * 并行地对区间[start, end)进行操作。区间会被递归二分，直到子区间长度不大于grain；各子区间可能在不同线程中执行。
+     * 此方法并不会做任何并发控制；如果存在潜在的读写冲突问题，需要调用者进行适当的处理。
+     *
+     * @param start     区间起点（含）
+     * @param end       区间终点（不含）
+     * @param grain     子区间的最大长度，不再被继续划分
+     * @param operation 需要在每个子区间上进行的操作
+     * @throws InterruptedException 如果在等待任务完成时被中断，将抛出此异常
+     * @throws TimeoutException     如果任务未能在规定时间（1小时）内完成，将抛出此异常
+     */
+    public static void parallelFor(int start, int end, int grain, RangeOperation operation) throws InterruptedException, TimeoutException {
+        if (end <= start) return;
+        ForkJoinPool currentPool = pool;
+        if (end - start <= grain || currentPool.getParallelism() == 1) {
+            operation.func(start, end);
+            return;
+        }
+
+        RangeTask task = new RangeTask(start, end, Math.max(grain, 1), operation);
+        if (ForkJoinTask.getPool() == currentPool) { // 已经位于线程池的工作线程中，直接执行以参与工作窃取
+            task.invoke();
+            return;
+        }
+        await(currentPool.submit(task));
+    }
+
+    /**
+     * 异步地提交一个任务，立即返回。任务由线程池中的线程执行，调用者可以继续其他工作，之后通过await()取得结果。
+     *
+     * @param task 任务
+     * @param <T>  任务结果的类型
+     * @return 已提交的任务
+     */
+    public static <T> ForkJoinTask<T> submit(Callable<T> task) {
+        return pool.submit(task);
+    }
+
+    /**
+     * 等待已提交的任务完成，并返回其结果。任务抛出的运行时异常将被重新抛出。
+     *
+     * @param task 已提交的任务
+     * @param <T>  任务结果的类型
+     * @return 任务的结果
+     * @throws InterruptedException 如果在等待任务完成时被中断，将抛出此异常
+     * @throws TimeoutException     如果任务未能在规定时间（1小时）内完成，将抛出此异常
+     */
+    public static <T> T await(ForkJoinTask<T> task) throws InterruptedException, TimeoutException {
+        try {
+            return task.get(TIMEOUT, TimeUnit.SECONDS);
+        } catch (TimeoutException ex) {
+            task.cancel(true);
+            throw new TimeoutException("Parallel operations failed to finish within " + TIMEOUT + " seconds.");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * 并行地对区间[start, end)进行操作。子区间的长度将根据区间长度和并行度自动确定。
+     *
+     * @param start     区间起点（含）
+     * @param end       区间终点（不含）
+     * @param operation 需要在每个子区间上进行的操作
+     * @throws InterruptedException 如果在等待任务完成时被中断，将抛出此异常
+     * @throws TimeoutException     如果任务未能在规定时间（1小时）内完成，将抛出此异常
+     */
+    public static void parallelFor(int start, int end, RangeOperation operation) throws InterruptedException, TimeoutException {
+        parallelFor(start, end, defaultGrain(end - start), operation);
+    }
+
+    /**
+     * 计算默认的子区间长度。每个线程平均分到约8个子区间，以便工作窃取能够平衡负载。
+     *
+     * @param length 区间长度
+     * @return 默认的子区间长度
+     */
+    public static int defaultGrain(int length) {
+        return Math.max(1, length / (getParallelism() * 8));
+    }
+
+    private static class RangeTask extends RecursiveAction {
+        private final int start, end, grain;
+        private final RangeOperation operation;
+
+        RangeTask(int start, int end, int grain, RangeOperation operation) {
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+            this.operation = operation;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= grain) {
+                operation.func(start, end);
+                return;
+            }
+            int mid = (start + end) >>> 1;
+            invokeAll(new RangeTask(start, mid, grain, operation), new RangeTask(mid, end, grain, operation));
+        }
+    }
+}
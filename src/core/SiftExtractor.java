@@ -0,0 +1,92 @@
+package core;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 可复用的、线程安全的SIFT特征提取器，适合在服务中长期持有，并由多个线程同时调用extract()。
+ * <p>
+ * 提取器本身只保存不可变的配置。每个调用线程拥有独立的工作区（缓冲区池）：一次提取结束后，尺度空间的高斯图像平面、DoG图像平面及滤波的中间结果
+ * 归还到当前线程的工作区，同一线程下一次提取同样尺寸的图像时直接复用，而不必重新分配整个尺度空间；
+ * 非增量模式下，高斯图像和DoG图像的Mat（本地内存）同样被复用，因此连续处理同样尺寸的图像（如相机帧）时，预热之后不再分配本地内存。各阶段的直方图等临时数据本就按任务分配、随任务结束而回收，
+ * 提取结果则归调用者所有，这两者都不在工作区中保留。
+ * <p>
+ * 每个线程的工作区保留的字节数有上限（默认为DEFAULT_MAX_POOLED_BYTES）。线程不再调用提取器时，可调用releaseThreadBuffers()立即释放其工作区。
+ * 多个线程同时提取时，各阶段仍共享SiftExecutor的线程池。
+ */
+public class SiftExtractor {
+    public static final long DEFAULT_MAX_POOLED_BYTES = 256L << 20; // 每个线程的工作区默认保留的字节数上限
+
+    public final SiftConfig config;
+    private final ThreadLocal<PlanePool> planePools;
+
+    public SiftExtractor() {
+        this(SiftConfig.DEFAULT);
+    }
+
+    public SiftExtractor(SiftConfig config) {
+        this(config, DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    /**
+     * 构造函数
+     *
+     * @param config                  配置
+     * @param maxPooledBytesPerThread 每个线程的工作区保留的字节数上限，图像平面与Mat合计；为0时不复用缓冲区
+     * @throws IllegalArgumentException 如果maxPooledBytesPerThread为负数，将抛出此异常。
+     */
+    public SiftExtractor(SiftConfig config, long maxPooledBytesPerThread) {
+        if (maxPooledBytesPerThread < 0)
+            throw new IllegalArgumentException("maxPooledBytesPerThread must not be negative, got " + maxPooledBytesPerThread + ".");
+        this.config = config;
+        boolean pooled = maxPooledBytesPerThread > 0;
+        this.planePools = ThreadLocal.withInitial(() -> pooled ? new PlanePool(maxPooledBytesPerThread) : PlanePool.NONE);
+    }
+
+    /**
+     * 提取图像的SIFT特征。可由多个线程同时调用。
+     *
+     * @param grayFloat 浮点类型的灰度图像，提取期间不得被修改
+     * @return 带描述子的关键点集合，与SIFT.runPacked()的结果相同
+     * @throws IllegalArgumentException 如果grayFloat不是浮点类型的灰度图像，将抛出此异常。
+     * @throws InterruptedException     如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException         如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public KeyPointSet extract(Mat grayFloat) throws InterruptedException, TimeoutException {
+        try (SIFT sift = new SIFT(grayFloat, config, planePools.get())) {
+            return sift.runChecked();
+        }
+    }
+
+    /**
+     * 提取图像的SIFT特征，以KeyPointX列表的形式返回。可由多个线程同时调用。
+     *
+     * @param grayFloat 浮点类型的灰度图像，提取期间不得被修改
+     * @return 带描述子的关键点列表，与SIFT.run()的结果相同
+     * @throws IllegalArgumentException 如果grayFloat不是浮点类型的灰度图像，将抛出此异常。
+     * @throws InterruptedException     如果线程池在等待线程运行完毕时被中断，将抛出此异常
+     * @throws TimeoutException         如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public ArrayList<KeyPointX> extractKeyPointXes(Mat grayFloat) throws InterruptedException, TimeoutException {
+        return extract(grayFloat).toKeyPointXes();
+    }
+
+    /**
+     * 释放当前线程的工作区，其中Mat的本地内存立即释放。之后当前线程再次调用extract()时将重新创建工作区。
+     */
+    public void releaseThreadBuffers() {
+        planePools.get().clear();
+        planePools.remove();
+    }
+
+    /**
+     * 返回当前线程的工作区保留的字节数
+     *
+     * @return 当前线程的工作区保留的字节数
+     */
+    public long pooledBytes() {
+        return planePools.get().pooledBytes();
+    }
+}
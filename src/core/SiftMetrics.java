@@ -0,0 +1,40 @@
+package core;
+
+/**
+ * 一次SIFT运行的统计数据，包括各阶段的耗时（纳秒）、各个筛选步骤后的关键点数量，以及尺度空间的规模。
+ */
+public class SiftMetrics {
+    // 各阶段耗时（纳秒）
+    public long pyramidNanos;               // 构建尺度空间（放大基准图像、构建octaves）
+    public long extremaDetectionNanos;      // 尺度空间极值检测
+    public long localizationNanos;          // 精确关键点定位（含按关键点数量上限的筛选）
+    public long orientationNanos;           // 朝向计算
+    public long descriptorNanos;            // 描述子生成
+    public long totalNanos;                 // 总耗时
+
+    // 尺度空间规模
+    public int nOctaves;                    // octave数量
+    public long pyramidBytes;               // 尺度空间中全部图像（Mat及图像平面）占用的字节数
+    public long peakPyramidBytes;           // 同一时刻驻留的尺度空间图像的最大字节数；逐octave运行时约为最大的octave的大小
+
+    // 关键点数量
+    public int nCoarseExtrema;              // 极值检测得到的粗糙关键点
+    public int nRejectedOutOfBound;         // 定位过程中越界而被舍弃的关键点
+    public int nRejectedNotConverged;       // 定位未收敛而被舍弃的关键点
+    public int nRejectedLowContrast;        // 弱对比剔除的关键点
+    public int nRejectedOnEdge;             // 边缘剔除的关键点
+    public int nLocalized;                  // 通过定位和剔除的关键点
+    public int nDroppedByBudget;            // 超出关键点数量上限（SiftConfig.maxFeatures）而被舍弃的关键点
+    public int nOrientationDuplicates;      // 因具有多个朝向而额外生成的关键点
+    public int nDescriptors;                // 最终生成的描述子
+
+    @Override
+    public String toString() {
+        return String.format("SiftMetrics{pyramid=%.3fms, extremaDetection=%.3fms, localization=%.3fms, orientation=%.3fms, " +
+                        "descriptor=%.3fms, total=%.3fms; octaves=%d, pyramidBytes=%d, peakPyramidBytes=%d; coarseExtrema=%d, rejectedOutOfBound=%d, " +
+                        "rejectedNotConverged=%d, rejectedLowContrast=%d, rejectedOnEdge=%d, localized=%d, droppedByBudget=%d, orientationDuplicates=%d, descriptors=%d}",
+                pyramidNanos / 1e6, extremaDetectionNanos / 1e6, localizationNanos / 1e6, orientationNanos / 1e6,
+                descriptorNanos / 1e6, totalNanos / 1e6, nOctaves, pyramidBytes, peakPyramidBytes, nCoarseExtrema, nRejectedOutOfBound,
+                nRejectedNotConverged, nRejectedLowContrast, nRejectedOnEdge, nLocalized, nDroppedByBudget, nOrientationDuplicates, nDescriptors);
+    }
+}
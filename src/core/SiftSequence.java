@@ -0,0 +1,185 @@
+package core;
+
+import org.opencv.core.Mat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 对尺寸固定的帧序列（如视频）连续提取SIFT特征，以吞吐量（每秒处理的帧数）而非单帧延迟为目标。处理分为两个相互重叠的阶段：
+ * 1. 调用run()的线程读取帧，构建尺度空间并检测极值点；
+ * 2. 一个描述线程完成关键点定位、朝向计算和描述子生成，并按帧的顺序调用回调。
+ * 因此第n+1帧的尺度空间构建与第n帧的后续阶段同时进行；两个阶段内部仍通过SiftExecutor并行计算。
+ * <p>
+ * 所有帧的尺寸必须与第一帧相同，尺度空间的布局在整个序列中保持不变。描述线程处理完一帧后，将其尺度空间交还第一阶段，
+ * 归还到第一阶段的缓冲区池（开启config.gradientCache时，描述线程也从中取出梯度平面），因此预热之后各帧的尺度空间不再重新分配。同时驻留的尺度空间不超过三帧：正在构建、等待描述和正在描述的各一帧。
+ * <p>
+ * 由于相邻帧的尺度空间需要同时驻留，序列模式总是一次性构建一帧的全部octave，忽略config.octaveAtATime。
+ */
+public class SiftSequence {
+    private static final long DEFAULT_MAX_POOLED_BYTES = 256L << 20; // 第一阶段的缓冲区池保留的字节数上限
+    private static final long HAND_OFF_POLL_MILLIS = 100; // 向描述线程交付帧时，每隔多久检查一次描述线程是否仍在运行
+
+    public final SiftConfig config;
+
+    /**
+     * 帧的来源
+     */
+    public interface FrameSource {
+        /**
+         * 返回下一帧。返回的Mat在下一次调用此方法之前不会被修改；之后可被来源复用，例如作为VideoCapture.read()的输出。
+         *
+         * @return 浮点类型的灰度图像；序列结束时返回null
+         */
+        Mat next();
+    }
+
+    /**
+     * 接收每一帧的结果。在描述线程中按帧的顺序调用。
+     */
+    public interface FrameCallback {
+        /**
+         * @param frameNo     帧的序号，从0开始
+         * @param keyPointSet 该帧带描述子的关键点，归回调所有
+         * @param metrics     该帧的统计数据；totalNanos为两个阶段的耗时之和，不含在队列中等待的时间
+         */
+        void accept(long frameNo, KeyPointSet keyPointSet, SiftMetrics metrics);
+    }
+
+    public SiftSequence() {
+        this(SiftConfig.DEFAULT);
+    }
+
+    public SiftSequence(SiftConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * 处理帧序列，直到frameSource返回null。每一帧的结果按帧的顺序传给callback；run()在最后一帧的回调返回后才返回。
+     * 任一阶段或回调抛出异常（包括Error）时，序列提前结束，异常在run()中原样重新抛出。
+     *
+     * @param frameSource 帧的来源
+     * @param callback    接收每一帧的结果
+     * @return 处理的帧数
+     * @throws IllegalArgumentException 如果某一帧不是浮点类型的灰度图像，或尺寸与第一帧不同，将抛出此异常。
+     * @throws InterruptedException     如果线程池在等待线程运行完毕时被中断，或等待描述线程时被中断，将抛出此异常
+     * @throws TimeoutException         如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
+     */
+    public long run(FrameSource frameSource, FrameCallback callback) throws InterruptedException, TimeoutException {
+        PlanePool pool = new PlanePool(DEFAULT_MAX_POOLED_BYTES);
+        BlockingQueue<Frame> detectedQueue = new ArrayBlockingQueue<>(1);
+        BlockingQueue<Frame> finishedQueue = new LinkedBlockingQueue<>(); // 描述完毕、等待归还缓冲区的帧
+        Describer describer = new Describer(detectedQueue, finishedQueue, callback);
+        Thread describerThread = new Thread(describer, "sift-sequence-describer");
+        describerThread.start();
+
+        long nFrame = 0;
+        Throwable failure = null;
+        Frame frame = null; // 已创建、尚未交给描述线程的帧
+        try {
+            int width = -1, height = -1;
+            for (Mat grayFloat = frameSource.next(); grayFloat != null && describer.failure == null; grayFloat = frameSource.next()) {
+                if (nFrame == 0) {
+                    width = grayFloat.width();
+                    height = grayFloat.height();
+                } else if (grayFloat.width() != width || grayFloat.height() != height) {
+                    throw new IllegalArgumentException("Frame " + nFrame + " is " + grayFloat.width() + "x" + grayFloat.height() +
+                            ", but the sequence is " + width + "x" + height + ".");
+                }
+                for (Frame finished = finishedQueue.poll(); finished != null; finished = finishedQueue.poll()) finished.sift.close();
+
+                frame = new Frame(nFrame++, new SIFT(grayFloat, config, pool));
+                long startTime = System.nanoTime();
+                frame.candidates = frame.sift.detect(frame.metrics);
+                frame.metrics.totalNanos = System.nanoTime() - startTime;
+                if (!handOff(detectedQueue, frame, describerThread)) break;
+                frame = null;
+            }
+        } catch (Throwable ex) {
+            failure = ex;
+        } finally {
+            if (frame != null) frame.sift.close();
+            handOff(detectedQueue, Frame.END, describerThread);
+            describerThread.join();
+            for (Frame finished = finishedQueue.poll(); finished != null; finished = finishedQueue.poll()) finished.sift.close();
+            pool.clear();
+        }
+
+        if (failure == null) failure = describer.failure;
+        if (failure instanceof InterruptedException) throw (InterruptedException) failure;
+        if (failure instanceof TimeoutException) throw (TimeoutException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure != null) throw (RuntimeException) failure;
+        return nFrame;
+    }
+
+    /**
+     * 将帧交给描述线程。与直接调用put()不同，描述线程意外终止时不会永远阻塞。
+     *
+     * @param detectedQueue   已检测极值点的帧的队列
+     * @param frame           需要交付的帧
+     * @param describerThread 描述线程
+     * @return 帧已进入队列时返回true；描述线程已终止时返回false
+     * @throws InterruptedException 如果在等待时被中断，将抛出此异常
+     */
+    private static boolean handOff(BlockingQueue<Frame> detectedQueue, Frame frame, Thread describerThread) throws InterruptedException {
+        while (!detectedQueue.offer(frame, HAND_OFF_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (!describerThread.isAlive()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 第二阶段：依次取出已检测极值点的帧，完成其余阶段并调用回调。出错（包括Error）后不再处理后续的帧，但仍将它们交还第一阶段，直到遇到结束标记。
+     */
+    private static class Describer implements Runnable {
+        private final BlockingQueue<Frame> detectedQueue, finishedQueue;
+        private final FrameCallback callback;
+        volatile Throwable failure = null;
+
+        Describer(BlockingQueue<Frame> detectedQueue, BlockingQueue<Frame> finishedQueue, FrameCallback callback) {
+            this.detectedQueue = detectedQueue;
+            this.finishedQueue = finishedQueue;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Frame frame = detectedQueue.take(); frame != Frame.END; frame = detectedQueue.take()) {
+                    if (failure == null) {
+                        try {
+                            long startTime = System.nanoTime();
+                            frame.sift.describe(frame.candidates, frame.metrics);
+                            frame.metrics.totalNanos += System.nanoTime() - startTime;
+                            callback.accept(frame.frameNo, frame.sift.getKeyPointSet(), frame.metrics);
+                        } catch (Throwable ex) {
+                            failure = ex;
+                        }
+                    }
+                    finishedQueue.put(frame);
+                }
+            } catch (InterruptedException ex) {
+                failure = ex;
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Frame {
+        static final Frame END = new Frame(-1, null); // 结束标记
+
+        final long frameNo;
+        final SIFT sift;
+        final SiftMetrics metrics = new SiftMetrics();
+        CandidateBuffer candidates;
+
+        Frame(long frameNo, SIFT sift) {
+            this.frameNo = frameNo;
+            this.sift = sift;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package core;
+
+import flib.Log;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeoutException;
+
+import static org.opencv.core.CvType.*;
+import static org.opencv.imgproc.Imgproc.*;
+
+/**
+ * 分块SIFT，用于超大图像。处理分为两部分：
+ * 1. 细尺度：将输入图像划分为互不重叠的核心区域，每块核心区域向四周扩展若干像素后独立运行SIFT，只保留前TILED_OCTAVES个octave中、
+ * 位置落在核心区域内的关键点。重叠宽度由描述子在这些octave中的最大采样半径（加上高斯滤波的支撑半径）决定，
+ * 因此保留下来的关键点所读取的像素都位于块内，其结果与在整张图像上运行时相同；每个关键点只属于一块核心区域，重叠区域中的重复关键点因此被去除。
+ * 2. 粗尺度：描述子半径超过重叠宽度的关键点只出现在第TILED_OCTAVES个及之后的octave中，这些octave在缩小后的整张图像上计算，
+ * 缩小倍数使缩小图像的第一个octave恰与整张图像的第TILED_OCTAVES个octave分辨率相同。
+ * <p>
+ * 各块在SiftExecutor的共享线程池中并行处理，同一时刻驻留的尺度空间不超过线程池并行度个块的大小。
+ * 输出的关键点均使用整张图像的坐标：位置为所在octave的局部坐标，尺度为全局尺度，与SIFT的输出一致。
+ */
+public class TiledSIFT {
+    public static final int TILED_OCTAVES = 3;          // 分块计算的octave数量，之后的octave在缩小的整张图像上计算
+    public static final int DEFAULT_TILE_SIZE = 1024;   // 默认的核心区域边长（输入图像像素）
+    private static final int ALIGNMENT = 1 << TILED_OCTAVES; // 块的起点对齐到此值的整数倍，使各octave中块与整张图像的像素网格一致
+
+    public final Mat grayFloat;
+    public final SiftConfig config;
+    private final int tileSize;
+    private final int overlap; // 核心区域向四周扩展的宽度（输入图像像素）
+    private ArrayList<KeyPointX> keyPointsWithDescriptor;
+
+    public TiledSIFT(Mat grayFloat) {
+        this(grayFloat, DEFAULT_TILE_SIZE, SiftConfig.DEFAULT);
+    }
+
+    /**
+     * 构造函数。
+     *
+     * @param grayFloat 浮点类型的灰度图像
+     * @param tileSize  核心区域的边长（输入图像像素），将向上对齐到2^TILED_OCTAVES的整数倍
+     * @param config    各块及粗尺度部分运行SIFT时使用的配置
+     */
+    public TiledSIFT(Mat grayFloat, int tileSize, SiftConfig config) {
+        if (grayFloat.type() != CV_32F)
+            throw new IllegalArgumentException("grayFloat must be a floating-point gray image.");
+        if (tileSize <= 0) throw new IllegalArgumentException("tileSize must be positive, got " + tileSize + ".");
+        this.grayFloat = grayFloat;
+        this.config = config;
+        this.tileSize = (tileSize + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        this.overlap = computeOverlap(config);
+    }
+
+    /**
+     * 计算重叠宽度。前TILED_OCTAVES个octave中，关键点的局部尺度不超过config.maxLocalScale，
+     * 其描述子读取的像素与关键点的距离不超过采样半径 + 1（梯度），而这些像素的值又依赖于其周围高斯滤波支撑半径内的像素。
+     * 将最后一个分块octave中的这一距离换算为输入图像的像素，并向上对齐。
+     *
+     * @param config 配置
+     * @return 重叠宽度（输入图像像素）
+     */
+    static int computeOverlap(SiftConfig config) {
+        int localRadius = DescriptorGenerator.supportRadius(config.maxLocalScale, config) + 1
+                + (int) Math.ceil(4 * config.maxLocalScale);
+        int overlap = (int) Math.ceil(localRadius * Math.pow(2, TILED_OCTAVES - 1) / 2); // octave 0的尺寸为输入图像的2倍
+        return (overlap + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    public ArrayList<KeyPointX> run() {
+        try {
+            int width = grayFloat.width(), height = grayFloat.height();
+            if (width <= tileSize && height <= tileSize) {
+                try (SIFT sift = new SIFT(grayFloat, config)) {
+                    keyPointsWithDescriptor = sift.run();
+                }
+                return keyPointsWithDescriptor;
+            }
+
+            int nTileX = (width + tileSize - 1) / tileSize, nTileY = (height + tileSize - 1) / tileSize;
+            @SuppressWarnings("unchecked")
+            ArrayList<KeyPointX>[] tileResults = new ArrayList[nTileX * nTileY];
+            SiftExecutor.parallelFor(0, tileResults.length, 1, (start, end) -> {
+                for (int t = start; t < end; t++) tileResults[t] = runTile(t % nTileX * tileSize, t / nTileX * tileSize);
+            });
+            ArrayList<KeyPointX> keyPointXes = new ArrayList<>();
+            for (ArrayList<KeyPointX> tileResult : tileResults) keyPointXes.addAll(tileResult);
+            keyPointXes.addAll(runCoarse());
+            keyPointsWithDescriptor = applyBudget(keyPointXes);
+            return keyPointsWithDescriptor;
+        } catch (InterruptedException ex) {
+            Log.error("Internal error raised when running tiled SIFT.");
+            ex.printStackTrace();
+        } catch (TimeoutException ex) {
+            Log.error("Time limit was exceeded (currently 1h) in the process of tiled SIFT.");
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * 处理一块核心区域。只保留前TILED_OCTAVES个octave中位置落在核心区域内的关键点，并将其位置转换为整张图像的坐标。
+     *
+     * @param coreX 核心区域左上角的横坐标（输入图像像素）
+     * @param coreY 核心区域左上角的纵坐标（输入图像像素）
+     * @return 属于这块核心区域的关键点
+     */
+    private ArrayList<KeyPointX> runTile(int coreX, int coreY) {
+        int width = grayFloat.width(), height = grayFloat.height();
+        int coreEndX = Math.min(coreX + tileSize, width), coreEndY = Math.min(coreY + tileSize, height);
+        int tileX = Math.max(coreX - overlap, 0), tileY = Math.max(coreY - overlap, 0);
+        int tileEndX = Math.min(coreEndX + overlap, width), tileEndY = Math.min(coreEndY + overlap, height);
+
+        Mat tile = grayFloat.submat(new Rect(tileX, tileY, tileEndX - tileX, tileEndY - tileY));
+        ArrayList<KeyPointX> tileKeyPointXes;
+        try (SIFT sift = new SIFT(tile, config)) {
+            tileKeyPointXes = sift.run();
+        }
+        if (tileKeyPointXes == null)
+            throw new IllegalStateException("Failed to extract features from tile at (" + coreX + ", " + coreY + ").");
+
+        ArrayList<KeyPointX> keyPointXes = new ArrayList<>();
+        for (KeyPointX keyPointX : tileKeyPointXes) {
+            KeyPoint keyPoint = keyPointX.keyPoint;
+            if (keyPoint.octave >= TILED_OCTAVES) continue;
+            double toInput = Math.pow(2, keyPoint.octave) / 2; // 局部坐标到输入图像像素的比例
+            double x = keyPoint.pt.x * toInput + tileX, y = keyPoint.pt.y * toInput + tileY;
+            if (x < coreX || x >= coreEndX || y < coreY || y >= coreEndY) continue;
+            keyPoint.pt.x = x / toInput;
+            keyPoint.pt.y = y / toInput;
+            keyPointXes.add(keyPointX);
+        }
+        return keyPointXes;
+    }
+
+    /**
+     * 在缩小2^shift倍的整张图像上运行SIFT，得到第TILED_OCTAVES个及之后的octave中的关键点，其中shift = TILED_OCTAVES - config.baseOctaveNo()。
+     * 缩小图像的第c个octave与整张图像的第c + shift个octave的分辨率相同，局部坐标无需转换，只需调整octave序号和全局尺度。
+     *
+     * @return 粗尺度的关键点
+     */
+    private ArrayList<KeyPointX> runCoarse() {
+        int shift = TILED_OCTAVES - config.baseOctaveNo();
+        Mat coarse = new Mat();
+        resize(grayFloat, coarse, new Size(), Math.pow(0.5, shift), Math.pow(0.5, shift), INTER_AREA);
+        ArrayList<KeyPointX> coarseKeyPointXes;
+        try (SIFT sift = new SIFT(coarse, config)) {
+            coarseKeyPointXes = sift.run();
+        }
+        coarse.release();
+        if (coarseKeyPointXes == null) throw new IllegalStateException("Failed to extract coarse-scale features.");
+        for (KeyPointX keyPointX : coarseKeyPointXes) {
+            keyPointX.keyPoint.octave += shift;
+            keyPointX.keyPoint.size = Util.local2GlobalScale(keyPointX.keyPoint.size, shift);
+        }
+        return coarseKeyPointXes;
+    }
+
+    /**
+     * 各块分别按config.maxFeatures筛选，合并后的总数可能超出上限，因此在合并结果上再按响应筛选一次。
+     * 此时关键点已带有朝向，同一位置的多个朝向各自计数。
+     *
+     * @param keyPointXes 合并后的关键点
+     * @return 筛选后的关键点，保持原有的相对顺序
+     */
+    private ArrayList<KeyPointX> applyBudget(ArrayList<KeyPointX> keyPointXes) {
+        if (config.maxFeatures <= 0 || keyPointXes.size() <= config.maxFeatures) return keyPointXes;
+        ArrayList<KeyPoint> keyPoints = new ArrayList<>(keyPointXes.size());
+        for (KeyPointX keyPointX : keyPointXes) keyPoints.add(keyPointX.keyPoint);
+        int[] selected = KeyPointSelector.select(keyPoints, config.maxFeatures, config.bucketGridSize,
+                grayFloat.width(), grayFloat.height());
+        ArrayList<KeyPointX> selectedKeyPointXes = new ArrayList<>(selected.length);
+        for (int i : selected) selectedKeyPointXes.add(keyPointXes.get(i));
+        return selectedKeyPointXes;
+    }
+
+    /**
+     * 返回带有完整信息（位置、尺度、朝向、响应、octave序号）以及描述子的关键点的列表。关键点按块的顺序排列，粗尺度的关键点位于最后。
+     *
+     * @return 带有完整信息（位置、尺度、朝向、响应、octave序号）以及描述子的关键点的列表。
+     * @throws EarlyCallException 应先调用run()以准备数据。如果在调用run()之前调用此方法，将抛出此异常。
+     */
+    public ArrayList<KeyPointX> getKeyPointsWithDescriptor() {
+        if (keyPointsWithDescriptor == null)
+            throw new EarlyCallException("Getter called before data have been prepared. Call run() first.");
+        return keyPointsWithDescriptor;
+    }
+}
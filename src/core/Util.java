@@ -8,9 +8,6 @@ import org.opencv.core.Point;
 import org.opencv.core.Size;
 
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
@@ -68,6 +65,7 @@ public class Util {
 
     /**
      * 并行地对每个像素进行重复的操作。此方法并不会做任何并发控制；如果存在潜在的读写冲突问题，需要调用者进行适当的处理。
+     * 图像按行划分为若干块，提交到SiftExecutor的共享线程池中执行。
      *
      * @param width     图像宽度
      * @param height    图像高度
@@ -78,44 +76,13 @@ public class Util {
      * @throws TimeoutException     如果线程池未能在规定时间（1小时）内完成任务，将抛出此异常
      */
     public static void foreachPixelParallelDo(int width, int height, int borderX, int borderY, PixelOperation operation) throws InterruptedException, TimeoutException {
-        int nCore = Runtime.getRuntime().availableProcessors();
-        int nSideBlock = (int) Math.floor(Math.sqrt(nCore)) + 1; // 每边上可以切分成几段，创建略多于核心数的分块
-        if (width - 2 * borderX < nSideBlock || height - 2 * borderY < nSideBlock)
-            foreachPixelDo(width, height, borderX, borderY, operation);
-
-        // 块切分
-        int xBlockLen = (width - 2 * borderX) / nSideBlock, yBlockLen = (height - 2 * borderY) / nSideBlock;
-        ArrayList<Integer> xBoundaries = new ArrayList<>(), yBoundaries = new ArrayList<>(); // 每一块的坐标范围，左闭右开
-        int xBoundary = borderX, yBoundary = borderY;
-        for (int i = 0; i < nSideBlock; i++) {
-            xBoundaries.add(xBoundary);
-            yBoundaries.add(yBoundary);
-            xBoundary += xBlockLen;
-            yBoundary += yBlockLen;
-        }
-        xBoundaries.add(width - borderX);
-        yBoundaries.add(height - borderY);
-
-        // 并行化
-        ExecutorService executorService = Executors.newCachedThreadPool();
-        for (int i = 1; i <= nSideBlock; i++) {
-            for (int j = 1; j <= nSideBlock; j++) {
-                int xStart = xBoundaries.get(i - 1), xEnd = xBoundaries.get(i);
-                int yStart = yBoundaries.get(j - 1), yEnd = yBoundaries.get(j);
-                executorService.execute(() -> {
-                    for (int x = xStart; x < xEnd; x++) {
-                        for (int y = yStart; y < yEnd; y++) {
-                            operation.func(x, y);
-                        }
-                    }
-                });
+        SiftExecutor.parallelFor(borderY, height - borderY, (yStart, yEnd) -> {
+            for (int y = yStart; y < yEnd; y++) {
+                for (int x = borderX; x < width - borderX; x++) {
+                    operation.func(x, y);
+                }
             }
-        }
-        executorService.shutdown();
-        long timeout = 3600;
-        if (!executorService.awaitTermination(timeout, TimeUnit.SECONDS)) {
-            throw new TimeoutException("Parallel pixel operations failed to finish within " + timeout + " seconds.");
-        }
+        });
     }
 
     /**
@@ -135,10 +102,11 @@ public class Util {
     }
 
     /**
-     * 局部尺度向全局尺度的转换。globalScale = localScale * 2^(octaveNo).
+     * 局部尺度向全局尺度的转换。globalScale = localScale * 2^(octaveNo). 全局尺度以第0个octave（放大2倍的输入图像）的像素为单位，
+     * 与SiftConfig.firstOctave无关。
      *
      * @param localScale 局部尺度
-     * @param octaveNo   octave序号，从0开始
+     * @param octaveNo   octave序号，从0开始；序号0对应放大2倍的输入图像
      * @return 全局尺度
      */
     public static float local2GlobalScale(float localScale, int octaveNo) {
@@ -149,7 +117,7 @@ public class Util {
      * 全局尺度向局部尺度的转换。localScale = globalScale / 2^(octaveNo).
      *
      * @param globalScale 全局尺度
-     * @param octaveNo    octave序号，从0开始
+     * @param octaveNo    octave序号，从0开始；序号0对应放大2倍的输入图像
      * @return 本octave内的尺度
      */
     public static float global2LocalScale(float globalScale, int octaveNo) {
@@ -167,15 +135,26 @@ public class Util {
     }
 
     /**
-     * 获取与关键点最接近的高斯图像的局部序号。此方法同样可以用于获取DoG图像的序号，但是需要注意，一个octave中DoG图像的数量会比高斯图像少1.
+     * 获取与关键点最接近的高斯图像的局部序号（使用默认配置）。此方法同样可以用于获取DoG图像的序号，但是需要注意，一个octave中DoG图像的数量会比高斯图像少1.
      *
      * @param keyPoint 关键点
      * @return 与关键点最接近的高斯图像的局部序号
      */
     public static int getLocalGaussianImageId(KeyPoint keyPoint) {
+        return getLocalGaussianImageId(keyPoint, SiftConfig.DEFAULT);
+    }
+
+    /**
+     * 获取与关键点最接近的高斯图像的局部序号。
+     *
+     * @param keyPoint 关键点
+     * @param config   提取关键点时使用的配置
+     * @return 与关键点最接近的高斯图像的局部序号
+     */
+    public static int getLocalGaussianImageId(KeyPoint keyPoint, SiftConfig config) {
         return (int) Math.round(MathX.log2(
-                keyPoint.size / GlobalParam.SIGMA / Math.pow(2, keyPoint.octave))
-                * GlobalParam.S); // 本octave中的图像Id
+                keyPoint.size / config.sigma / Math.pow(2, keyPoint.octave))
+                * config.s); // 本octave中的图像Id
     }
 
     /**
@@ -192,6 +171,21 @@ public class Util {
         return new FloatMatrix(new float[]{dx, dy});
     }
 
+    /**
+     * 使用有限微分计算(x,y)位置梯度的O(h^2)阶近似值。f'(x) = (f(x + 1) - f(x - 1)) / 2
+     *
+     * @param x     计算梯度的点的横坐标（列指标）
+     * @param y     计算梯度的点的纵坐标（行指标）
+     * @param image 计算梯度的图像平面
+     * @return (x, y)位置梯度的近似值
+     */
+    public static FloatMatrix computeGradient(int x, int y, FloatImage image) {
+        int idx = image.index(x, y);
+        float dy = (image.data[idx + image.stride] - image.data[idx - image.stride]) / 2;
+        float dx = (image.data[idx + 1] - image.data[idx - 1]) / 2;
+        return new FloatMatrix(new float[]{dx, dy});
+    }
+
     /**
      * 对三维张量的指定元素进行自增操作。
      *
@@ -236,6 +230,20 @@ public class Util {
         return ret;
     }
 
+    /**
+     * 原地将数组中的一段归一化，使其第二范数为1.
+     *
+     * @param array  数组
+     * @param offset 需要归一化的片段在array中的起始位置
+     * @param length 需要归一化的片段的长度
+     */
+    public static void normalize(float[] array, int offset, int length) {
+        double sumOfSquares = 0;
+        for (int i = offset; i < offset + length; i++) sumOfSquares += array[i] * array[i];
+        float norm = (float) Math.max(Math.sqrt(sumOfSquares), EPS);
+        for (int i = offset; i < offset + length; i++) array[i] /= norm;
+    }
+
     /**
      * 将张量中idx位置的子张量展平为向量
      *
@@ -259,7 +267,8 @@ public class Util {
     }
 
     /**
-     * 计算keyPoint在目标octave下的位置
+     * 计算keyPoint在目标octave下的位置。octave序号0对应放大2倍的输入图像，1对应输入图像，与SiftConfig.firstOctave无关，
+     * 因此目标octave不必在尺度空间中实际存在。
      *
      * @param keyPoint     关键点
      * @param targetOctave 目标octave
@@ -39,7 +39,8 @@ public class Visualization {
     }
 
     /**
-     * 在image上标注关键点。该该方法不会更改传入的image。
+     * 在image上标注关键点。该方法不会更改传入的image。关键点的位置和尺度都将换算到image所在的octave；
+     * octave序号0对应放大2倍的输入图像，1对应输入图像，与提取关键点时使用的SiftConfig.firstOctave无关。
      *
      * @param image           用于标注关键点的图像。图像应为以下类型之一：CV_8U, CV_8UC1, CU_8UC3。
      * @param keyPoints       关键点列表
@@ -62,7 +63,7 @@ public class Visualization {
             float[] pos = Util.relocate(keyPoint, imageOctave); // (x,y)
             Point point = new Point(new double[]{pos[0], pos[1]});
             int radius = Math.max( // 半径至少为1
-                    Math.round(withSize ? keyPoint.size : 1), 1);
+                    Math.round(withSize ? Util.global2LocalScale(keyPoint.size, imageOctave) : 1), 1);
             Imgproc.circle(imageWithPoints, point, radius, color);
             if (withOrientation) {
                 float[] delta = new float[]{(float) (radius * Math.cos(keyPoint.angle)), (float) (radius * Math.sin(keyPoint.angle))};
@@ -1,12 +1,20 @@
 package io;
 
+import core.KeyPointSet;
 import core.KeyPointX;
+import org.opencv.core.KeyPoint;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 
 public class IOUtil {
+    private static final int WRITE_BUFFER_SIZE = 1 << 16; // 写入二进制文件时使用的缓冲区大小
+
     /**
      * 向文件写入KeyPointX列表。该方法实际上会写入一个ArrayList<SerializableKeyPointX>对象。
      *
@@ -16,15 +24,7 @@ public class IOUtil {
      * @throws IOException 当存在以下情况时，抛出IOException：写入文件已经存在但不允许覆盖；文件的上级路径不存在且无法被创建；其他Java内置API可能抛出的异常。
      */
     public static void writeKeyPointXes(ArrayList<KeyPointX> keyPointXes, String filePath, boolean overwrite) throws IOException {
-        File file = new File(filePath);
-        if (file.exists()) {
-            if (!overwrite) throw new FileAlreadyExistsException(filePath);
-        } else { // !file.exists()
-            File parentFile = file.getParentFile();
-            if (parentFile != null && !parentFile.exists() && !parentFile.mkdirs()) { // 尝试创建上级目录
-                throw new IOException("The folder does not exist and the program failed to make such a folder.");
-            }
-        }
+        File file = prepareOutputFile(filePath, overwrite);
 
         ArrayList<SerializableKeyPointX> serializableKeyPointXes = new ArrayList<>();
         for (KeyPointX keyPointX : keyPointXes)
@@ -57,4 +57,161 @@ public class IOUtil {
         }
         return ret;
     }
+
+    /**
+     * 以二进制格式向文件写入KeyPointX列表。文件格式见MappedKeyPointFile；写入的文件可以通过MappedKeyPointFile以内存映射方式读取。
+     *
+     * @param keyPointXes KeyPointX列表，所有描述子的长度必须相同
+     * @param filePath    文件路径
+     * @param overwrite   是否允许覆盖
+     * @param quantize    是否将描述子量化为uint8存储。量化后文件体积约为原来的1/4，但会损失精度
+     * @throws IOException 当存在以下情况时，抛出IOException：写入文件已经存在但不允许覆盖；文件的上级路径不存在且无法被创建；其他Java内置API可能抛出的异常。
+     * @throws IllegalArgumentException 如果描述子的长度不一致，将抛出此异常。
+     */
+    public static void writeKeyPointXesBinary(ArrayList<KeyPointX> keyPointXes, String filePath, boolean overwrite, boolean quantize) throws IOException {
+        // 在打开文件之前检查描述子长度，以免不合法的输入截断已有的文件
+        int descriptorLength = keyPointXes.isEmpty() ? 0 : keyPointXes.get(0).descriptor.length;
+        for (KeyPointX keyPointX : keyPointXes) {
+            if (keyPointX.descriptor.length != descriptorLength)
+                throw new IllegalArgumentException("All descriptors must have the same length " + descriptorLength + ", got " + keyPointX.descriptor.length + ".");
+        }
+        File file = prepareOutputFile(filePath, overwrite);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            putHeader(buffer, keyPointXes.size(), descriptorLength, quantize);
+
+            // 关键点记录表
+            for (KeyPointX keyPointX : keyPointXes) {
+                if (buffer.remaining() < MappedKeyPointFile.RECORD_SIZE) flush(buffer, channel);
+                KeyPoint keyPoint = keyPointX.keyPoint;
+                buffer.putFloat((float) keyPoint.pt.x);
+                buffer.putFloat((float) keyPoint.pt.y);
+                buffer.putFloat(keyPoint.size);
+                buffer.putFloat(keyPoint.angle);
+                buffer.putFloat(keyPoint.response);
+                buffer.putInt(keyPoint.octave);
+                buffer.putInt(keyPoint.class_id);
+                buffer.putInt(0); // 保留位
+            }
+
+            // 描述子块
+            for (KeyPointX keyPointX : keyPointXes)
+                putDescriptor(buffer, channel, keyPointX.descriptor.data, 0, descriptorLength, quantize);
+            flush(buffer, channel);
+        }
+    }
+
+    /**
+     * 以二进制格式向文件写入KeyPointSet，格式与writeKeyPointXesBinary()相同（class_id记为-1）。关键点和描述子直接从集合的基本类型数组中读取，
+     * 不创建任何中间对象。
+     *
+     * @param keyPointSet 关键点集合
+     * @param filePath    文件路径
+     * @param overwrite   是否允许覆盖
+     * @param quantize    是否将描述子量化为uint8存储
+     * @throws IOException 当存在以下情况时，抛出IOException：写入文件已经存在但不允许覆盖；文件的上级路径不存在且无法被创建；其他Java内置API可能抛出的异常。
+     */
+    public static void writeKeyPointSetBinary(KeyPointSet keyPointSet, String filePath, boolean overwrite, boolean quantize) throws IOException {
+        File file = prepareOutputFile(filePath, overwrite);
+        int n = keyPointSet.size(), descriptorLength = keyPointSet.getDescriptorLength();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            putHeader(buffer, n, descriptorLength, quantize);
+
+            // 关键点记录表
+            for (int i = 0; i < n; i++) {
+                if (buffer.remaining() < MappedKeyPointFile.RECORD_SIZE) flush(buffer, channel);
+                buffer.putFloat(keyPointSet.getX(i));
+                buffer.putFloat(keyPointSet.getY(i));
+                buffer.putFloat(keyPointSet.getSize(i));
+                buffer.putFloat(keyPointSet.getAngle(i));
+                buffer.putFloat(keyPointSet.getResponse(i));
+                buffer.putInt(keyPointSet.getOctave(i));
+                buffer.putInt(-1);
+                buffer.putInt(0); // 保留位
+            }
+
+            // 描述子块
+            putDescriptor(buffer, channel, keyPointSet.getDescriptors(), 0, n * descriptorLength, quantize);
+            flush(buffer, channel);
+        }
+    }
+
+    /**
+     * 写入文件头
+     *
+     * @param buffer           缓冲区，其中至少有HEADER_SIZE字节的剩余空间
+     * @param nKeyPoints       关键点数量
+     * @param descriptorLength 描述子长度
+     * @param quantize         描述子是否量化为uint8存储
+     */
+    private static void putHeader(ByteBuffer buffer, int nKeyPoints, int descriptorLength, boolean quantize) {
+        buffer.putInt(MappedKeyPointFile.MAGIC);
+        buffer.putInt(MappedKeyPointFile.VERSION);
+        buffer.putInt(MappedKeyPointFile.HEADER_SIZE);
+        buffer.putInt(nKeyPoints);
+        buffer.putInt(descriptorLength);
+        buffer.putInt(quantize ? MappedKeyPointFile.DESCRIPTOR_UINT8 : MappedKeyPointFile.DESCRIPTOR_FLOAT32);
+        buffer.putInt(MappedKeyPointFile.RECORD_SIZE);
+        buffer.putFloat(quantize ? MappedKeyPointFile.QUANTIZATION_SCALE : 1);
+        buffer.putLong(MappedKeyPointFile.HEADER_SIZE + (long) nKeyPoints * MappedKeyPointFile.RECORD_SIZE); // 描述子块的偏移量
+        while (buffer.position() < MappedKeyPointFile.HEADER_SIZE) buffer.put((byte) 0); // 保留位
+    }
+
+    /**
+     * 将values[offset, offset + length)写入描述子块，缓冲区满时写入文件
+     *
+     * @param buffer   缓冲区
+     * @param channel  文件
+     * @param values   描述子元素
+     * @param offset   起始位置
+     * @param length   元素数量
+     * @param quantize 是否量化为uint8
+     */
+    private static void putDescriptor(ByteBuffer buffer, FileChannel channel, float[] values, int offset, int length, boolean quantize) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffer.remaining() < Float.BYTES) flush(buffer, channel);
+            if (quantize) {
+                int quantized = Math.round(values[i] * MappedKeyPointFile.QUANTIZATION_SCALE);
+                buffer.put((byte) Math.max(0, Math.min(255, quantized)));
+            } else {
+                buffer.putFloat(values[i]);
+            }
+        }
+    }
+
+    /**
+     * 检查输出文件能否写入，并在需要时创建上级目录
+     *
+     * @param filePath  文件路径
+     * @param overwrite 是否允许覆盖
+     * @return 输出文件
+     * @throws IOException 写入文件已经存在但不允许覆盖，或文件的上级路径不存在且无法被创建
+     */
+    private static File prepareOutputFile(String filePath, boolean overwrite) throws IOException {
+        File file = new File(filePath);
+        if (file.exists()) {
+            if (!overwrite) throw new FileAlreadyExistsException(filePath);
+        } else { // !file.exists()
+            File parentFile = file.getParentFile();
+            if (parentFile != null && !parentFile.exists() && !parentFile.mkdirs()) { // 尝试创建上级目录
+                throw new IOException("The folder does not exist and the program failed to make such a folder.");
+            }
+        }
+        return file;
+    }
+
+    /**
+     * 将缓冲区中的数据全部写入文件，并清空缓冲区
+     */
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
 }
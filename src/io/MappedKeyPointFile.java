@@ -0,0 +1,208 @@
+package io;
+
+import core.KeyPointSet;
+import core.KeyPointX;
+import org.jblas.FloatMatrix;
+import org.opencv.core.KeyPoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * 以内存映射方式读取二进制关键点文件。文件由IOUtil.writeKeyPointXesBinary()写入，所有数值均为小端序，依次包含：
+ * 1. 固定长度（HEADER_SIZE字节）的文件头：魔数、版本号、文件头长度、关键点数量、描述子长度、描述子类型、记录长度、量化系数、描述子块的偏移量；
+ * 2. 关键点记录表，每条记录RECORD_SIZE字节：x, y, size, angle, response（float），octave, class_id（int），以及4字节保留位；
+ * 3. 连续存储的描述子块，每个描述子由描述子长度个float或uint8组成。
+ * 描述子可以通过getDescriptors()以FloatBuffer的形式直接访问，无需复制。
+ */
+public class MappedKeyPointFile implements AutoCloseable {
+    public static final int MAGIC = 0x5446534A;             // 按小端序读取的"JSFT"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 32;
+    public static final int DESCRIPTOR_FLOAT32 = 0;         // 描述子以float存储
+    public static final int DESCRIPTOR_UINT8 = 1;           // 描述子量化为uint8存储
+    public static final float QUANTIZATION_SCALE = 512;     // 量化系数，uint8值 = min(255, round(描述子元素 * QUANTIZATION_SCALE))
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int nKeyPoints, descriptorLength, descriptorType;
+    private final float quantizationScale;
+    private final long descriptorOffset;
+
+    /**
+     * 打开并映射二进制关键点文件。
+     *
+     * @param filePath 文件路径
+     * @throws IOException 如果读取或映射文件失败，或文件的格式不正确，将抛出此异常
+     */
+    public MappedKeyPointFile(String filePath) throws IOException {
+        channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+        try {
+            if (channel.size() < HEADER_SIZE) throw new IOException("File \"" + filePath + "\" is too short to hold a header.");
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("File \"" + filePath + "\" exceeds the 2GB mapping limit.");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt(0) != MAGIC) throw new IOException("File \"" + filePath + "\" is not a binary key point file.");
+            int version = buffer.getInt(4);
+            if (version != VERSION) throw new IOException("Unsupported binary key point file version " + version + ".");
+            int headerSize = buffer.getInt(8);
+            nKeyPoints = buffer.getInt(12);
+            descriptorLength = buffer.getInt(16);
+            descriptorType = buffer.getInt(20);
+            int recordSize = buffer.getInt(24);
+            quantizationScale = buffer.getFloat(28);
+            descriptorOffset = buffer.getLong(32);
+            if (headerSize != HEADER_SIZE || recordSize != RECORD_SIZE)
+                throw new IOException("Unexpected header size " + headerSize + " or record size " + recordSize + ".");
+            if (descriptorType != DESCRIPTOR_FLOAT32 && descriptorType != DESCRIPTOR_UINT8)
+                throw new IOException("Unknown descriptor type " + descriptorType + ".");
+            if (nKeyPoints < 0 || descriptorLength < 0)
+                throw new IOException("Invalid key point count " + nKeyPoints + " or descriptor length " + descriptorLength + ".");
+            if (descriptorOffset != HEADER_SIZE + (long) nKeyPoints * RECORD_SIZE)
+                throw new IOException("Descriptor offset " + descriptorOffset + " does not follow the " + nKeyPoints + " key point records.");
+            if (descriptorType == DESCRIPTOR_UINT8 && !(quantizationScale > 0))
+                throw new IOException("Invalid quantization scale " + quantizationScale + ".");
+            long expectedSize = descriptorOffset + (long) nKeyPoints * descriptorLength * elementSize(descriptorType);
+            if (channel.size() < expectedSize)
+                throw new IOException("File \"" + filePath + "\" is truncated: expected " + expectedSize + " bytes, got " + channel.size() + ".");
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    static int elementSize(int descriptorType) {
+        return descriptorType == DESCRIPTOR_FLOAT32 ? Float.BYTES : 1;
+    }
+
+    public int size() {
+        return nKeyPoints;
+    }
+
+    public int getDescriptorLength() {
+        return descriptorLength;
+    }
+
+    public boolean isQuantized() {
+        return descriptorType == DESCRIPTOR_UINT8;
+    }
+
+    /**
+     * 返回量化系数：量化存储的描述子元素 = uint8值 / 量化系数。仅在描述子以uint8存储时有意义。
+     *
+     * @return 量化系数
+     */
+    public float getQuantizationScale() {
+        return quantizationScale;
+    }
+
+    /**
+     * 读取第i个关键点
+     *
+     * @param i 关键点序号
+     * @return 第i个关键点
+     */
+    public KeyPoint getKeyPoint(int i) {
+        int pos = HEADER_SIZE + checkIndex(i) * RECORD_SIZE;
+        return new KeyPoint(buffer.getFloat(pos), buffer.getFloat(pos + 4), buffer.getFloat(pos + 8),
+                buffer.getFloat(pos + 12), buffer.getFloat(pos + 16), buffer.getInt(pos + 20), buffer.getInt(pos + 24));
+    }
+
+    /**
+     * 以FloatBuffer的形式返回全部描述子，不发生复制。第i个描述子位于[i * 描述子长度, (i + 1) * 描述子长度)。
+     *
+     * @return 全部描述子组成的FloatBuffer
+     * @throws UnsupportedOperationException 如果描述子以uint8存储，将抛出此异常；此时应使用getQuantizedDescriptors()。
+     */
+    public FloatBuffer getDescriptors() {
+        if (descriptorType != DESCRIPTOR_FLOAT32)
+            throw new UnsupportedOperationException("Descriptors are quantized; use getQuantizedDescriptors() instead.");
+        return descriptorBlock().asFloatBuffer();
+    }
+
+    /**
+     * 以ByteBuffer的形式返回全部量化描述子，不发生复制。每个字节应作为无符号数读取。
+     *
+     * @return 全部量化描述子组成的ByteBuffer
+     * @throws UnsupportedOperationException 如果描述子以float存储，将抛出此异常；此时应使用getDescriptors()。
+     */
+    public ByteBuffer getQuantizedDescriptors() {
+        if (descriptorType != DESCRIPTOR_UINT8)
+            throw new UnsupportedOperationException("Descriptors are not quantized; use getDescriptors() instead.");
+        return descriptorBlock();
+    }
+
+    private ByteBuffer descriptorBlock() {
+        ByteBuffer block = buffer.duplicate();
+        block.position((int) descriptorOffset);
+        block.limit((int) (descriptorOffset + (long) nKeyPoints * descriptorLength * elementSize(descriptorType)));
+        return block.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * 将第i个描述子复制到out[offset, offset + 描述子长度)。量化存储的描述子会被还原为float。
+     *
+     * @param i      关键点序号
+     * @param out    输出数组
+     * @param offset 描述子在out中的起始位置
+     */
+    public void getDescriptor(int i, float[] out, int offset) {
+        long pos = descriptorOffset + (long) checkIndex(i) * descriptorLength * elementSize(descriptorType);
+        for (int j = 0; j < descriptorLength; j++) {
+            if (descriptorType == DESCRIPTOR_FLOAT32)
+                out[offset + j] = buffer.getFloat((int) pos + j * Float.BYTES);
+            else
+                out[offset + j] = (buffer.get((int) pos + j) & 0xFF) / quantizationScale;
+        }
+    }
+
+    /**
+     * 将文件中的全部关键点转换为KeyPointX列表
+     *
+     * @return KeyPointX列表
+     */
+    public ArrayList<KeyPointX> toKeyPointXes() {
+        ArrayList<KeyPointX> keyPointXes = new ArrayList<>(nKeyPoints);
+        float[] descriptor = new float[descriptorLength];
+        for (int i = 0; i < nKeyPoints; i++) {
+            getDescriptor(i, descriptor, 0);
+            keyPointXes.add(new KeyPointX(getKeyPoint(i), new FloatMatrix(descriptor)));
+        }
+        return keyPointXes;
+    }
+
+    /**
+     * 将文件中的全部关键点读入KeyPointSet。关键点的class_id不会被保留。
+     *
+     * @return 关键点集合
+     */
+    public KeyPointSet toKeyPointSet() {
+        KeyPointSet keyPointSet = new KeyPointSet(nKeyPoints, descriptorLength);
+        float[] descriptor = new float[descriptorLength];
+        for (int i = 0; i < nKeyPoints; i++) {
+            getDescriptor(i, descriptor, 0);
+            keyPointSet.add(getKeyPoint(i), descriptor, 0);
+        }
+        return keyPointSet;
+    }
+
+    private int checkIndex(int i) {
+        if (i < 0 || i >= nKeyPoints)
+            throw new IndexOutOfBoundsException("Key point index " + i + " is out of bound [0, " + nKeyPoints + ").");
+        return i;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
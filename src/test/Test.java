@@ -37,6 +37,7 @@ public class Test {
         normalize(gray, gray, 0, 1, NORM_MINMAX, CV_32F);
         try {
             ioTest(imagePath);
+            binaryIoTest(imagePath);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -177,4 +178,64 @@ public class Test {
         ArrayList<KeyPointX> recoveredList = IOUtil.readKeyPointXes(filePath);
         System.out.println();
     }
+
+    private static void binaryIoTest(String imagePath) throws IOException {
+        Mat image = Imgcodecs.imread(imagePath);
+        Mat gray = new Mat();
+        Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
+        Mat grayFloat = new Mat();
+        normalize(gray, grayFloat, 0, 1, NORM_MINMAX, CV_32F);
+
+        SIFT sift = new SIFT(grayFloat);
+        ArrayList<KeyPointX> keyPointsWithDescriptor = sift.run();
+        KeyPointSet keyPointSet = sift.getKeyPointSet();
+
+        for (boolean quantize : new boolean[]{false, true}) {
+            // 量化误差不超过半个量化步长；float存储应无损
+            double tolerance = quantize ? 0.5 / MappedKeyPointFile.QUANTIZATION_SCALE + 1e-6 : 0;
+
+            String filePath = quantize ? "KeyPointList.u8.bin" : "KeyPointList.bin";
+            IOUtil.writeKeyPointXesBinary(keyPointsWithDescriptor, filePath, true, quantize);
+            try (MappedKeyPointFile file = new MappedKeyPointFile(filePath)) {
+                ArrayList<KeyPointX> recoveredList = file.toKeyPointXes();
+                int nFieldMismatch = 0;
+                double maxError = 0;
+                for (int i = 0; i < recoveredList.size(); i++) {
+                    KeyPointX original = keyPointsWithDescriptor.get(i), recovered = recoveredList.get(i);
+                    if (!sameKeyPoint(original.keyPoint, recovered.keyPoint) || original.keyPoint.class_id != recovered.keyPoint.class_id)
+                        nFieldMismatch++;
+                    for (int j = 0; j < original.descriptor.length; j++)
+                        maxError = Math.max(maxError, Math.abs(original.descriptor.get(j) - recovered.descriptor.get(j)));
+                }
+                System.out.printf("writeKeyPointXesBinary (quantize=%b): %d/%d key points recovered, %d field mismatches, max element error = %.6f (%s)\n",
+                        quantize, recoveredList.size(), keyPointsWithDescriptor.size(), nFieldMismatch, maxError,
+                        recoveredList.size() == keyPointsWithDescriptor.size() && nFieldMismatch == 0 && maxError <= tolerance ? "OK" : "FAILED");
+            }
+
+            String setFilePath = quantize ? "KeyPointSet.u8.bin" : "KeyPointSet.bin";
+            IOUtil.writeKeyPointSetBinary(keyPointSet, setFilePath, true, quantize);
+            try (MappedKeyPointFile file = new MappedKeyPointFile(setFilePath)) {
+                KeyPointSet recoveredSet = file.toKeyPointSet();
+                int nFieldMismatch = 0;
+                double maxError = 0;
+                float[] original = keyPointSet.getDescriptors(), recovered = recoveredSet.getDescriptors();
+                for (int i = 0; i < recoveredSet.size(); i++) {
+                    if (!sameKeyPoint(keyPointSet.getKeyPoint(i), recoveredSet.getKeyPoint(i))) nFieldMismatch++;
+                }
+                for (int j = 0; j < recoveredSet.size() * recoveredSet.getDescriptorLength(); j++)
+                    maxError = Math.max(maxError, Math.abs(original[j] - recovered[j]));
+                System.out.printf("writeKeyPointSetBinary (quantize=%b): %d/%d key points recovered, %d field mismatches, max element error = %.6f (%s)\n",
+                        quantize, recoveredSet.size(), keyPointSet.size(), nFieldMismatch, maxError,
+                        recoveredSet.size() == keyPointSet.size() && nFieldMismatch == 0 && maxError <= tolerance ? "OK" : "FAILED");
+            }
+        }
+    }
+
+    /**
+     * 比较两个关键点的位置、尺度、朝向、响应和octave序号（以float精度）
+     */
+    private static boolean sameKeyPoint(KeyPoint a, KeyPoint b) {
+        return (float) a.pt.x == (float) b.pt.x && (float) a.pt.y == (float) b.pt.y && a.size == b.size
+                && a.angle == b.angle && a.response == b.response && a.octave == b.octave;
+    }
 }